@@ -0,0 +1,85 @@
+package edu.cwru.sepia.agent;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events emitted by RLAgent, so time spent in the agent can be lined up with GC and
+ * safepoint pauses in the same recording.
+ *
+ * The events are only recorded while a recording with them enabled is running, e.g.
+ * {@code jcmd <pid> JFR.start settings=profile}. They can be switched off at runtime with
+ * {@code edu.cwru.sepia.agent.Phase#enabled=false} in the recording settings. When they are off,
+ * begin() and shouldCommit() are all that runs and the event objects do not escape, so the cost is close to zero.
+ */
+public final class AgentEvents {
+
+    public static final String INITIAL_STEP = "initialStep";
+    public static final String MIDDLE_STEP = "middleStep";
+    public static final String TERMINAL_STEP = "terminalStep";
+    public static final String READ_LOGS = "readLogs";
+    public static final String EVENT_CHECK = "eventHasOccurred";
+    public static final String UPDATE_WEIGHTS = "updateWeights";
+    public static final String SAVE_WEIGHTS = "saveWeights";
+
+    private AgentEvents() {
+    }
+
+    /**
+     * One call of an agent phase. The duration is the time between begin() and commit().
+     */
+    @Name("edu.cwru.sepia.agent.Phase")
+    @Label("Agent Phase")
+    @Category({"SEPIA", "RLAgent"})
+    @Description("Time spent in one phase of the RL agent")
+    @StackTrace(false)
+    public static class Phase extends Event {
+        @Label("Phase")
+        public String phase;
+
+        @Label("Turn")
+        public int turn;
+
+        @Label("Episode")
+        @Description("Total number of episodes started, learning and evaluation")
+        public int episode;
+
+        @Label("My Footmen")
+        public int myFootmen;
+
+        @Label("Enemy Footmen")
+        public int enemyFootmen;
+
+        @Label("Reason")
+        @Description("Why the phase did what it did, e.g. which event triggered new actions")
+        public String reason;
+    }
+
+    /**
+     * A whole episode, from its first turn to terminalStep.
+     */
+    @Name("edu.cwru.sepia.agent.Episode")
+    @Label("Agent Episode")
+    @Category({"SEPIA", "RLAgent"})
+    @StackTrace(false)
+    public static class Episode extends Event {
+        @Label("Episode")
+        public int episode;
+
+        @Label("Learning")
+        public boolean learning;
+
+        @Label("Turns")
+        public int turns;
+
+        @Label("My Footmen Left")
+        public int myFootmen;
+
+        @Label("Enemy Footmen Left")
+        public int enemyFootmen;
+    }
+}
@@ -0,0 +1,194 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.ActionFeedback;
+
+import java.util.*;
+
+/**
+ * Keeps a running picture of the battle from the logs of a BattleView. Every turn only the logs of the turns that
+ * have not been seen yet are read, once, and the state below is updated from them:
+ *
+ * - which units are still alive on each side
+ * - the last action feedback of each of my units, to tell which are idle
+ * - damage dealt and taken by each unit on the last turn
+ * - who landed the killing blow on each dead unit
+ * - which of my footmen each enemy is attacking, inferred from whom it damaged last
+ *
+ * Lookups are constant time, so per turn work follows the number of log entries instead of the army sizes.
+ */
+public class BattleTracker {
+
+    private final int playernum;
+
+    private final Set<Integer> mine = new HashSet<>();
+    private final Set<Integer> enemies = new HashSet<>();
+    private final Map<Integer, ActionFeedback> actionStatus = new HashMap<>();
+    private final Map<Integer, Integer> damageDealt = new HashMap<>();
+    private final Map<Integer, Integer> damageTaken = new HashMap<>();
+    private final Map<Integer, Integer> lastHitBy = new HashMap<>();
+    private final Map<Integer, Integer> killedBy = new HashMap<>();
+    private final Map<Integer, Integer> enemyTargets = new HashMap<>();
+    private final List<Integer> deaths = new ArrayList<>();
+    private final List<BattleView.Damage> damage = new ArrayList<>();
+
+    //Last turn whose logs have been read
+    private int lastTurn = -1;
+    private String eventReason;
+
+    public BattleTracker(int playernum) {
+        this.playernum = playernum;
+    }
+
+    /**
+     * Starts a new episode.
+     *
+     * @param myFootmen My units at the start of the episode
+     * @param enemyFootmen Enemy units at the start of the episode
+     */
+    public void reset(Collection<Integer> myFootmen, Collection<Integer> enemyFootmen) {
+        mine.clear();
+        mine.addAll(myFootmen);
+        enemies.clear();
+        enemies.addAll(enemyFootmen);
+        actionStatus.clear();
+        damageDealt.clear();
+        damageTaken.clear();
+        lastHitBy.clear();
+        killedBy.clear();
+        enemyTargets.clear();
+        deaths.clear();
+        damage.clear();
+        lastTurn = -1;
+        eventReason = null;
+    }
+
+    /**
+     * Reads the logs of every turn before the current one that has not been read yet.
+     *
+     * @param turn Current turn number
+     * @param view Battle with the logs of the episode
+     * @return False if there was nothing new to read
+     */
+    public boolean update(int turn, BattleView view) {
+        if(lastTurn >= turn - 1) {
+            return false;
+        }
+        damageDealt.clear();
+        damageTaken.clear();
+        deaths.clear();
+        damage.clear();
+        eventReason = null;
+
+        for(int t = lastTurn + 1; t < turn; t++) {
+            for(Map.Entry<Integer, ActionFeedback> entry : view.getCommandFeedback(playernum, t).entrySet()) {
+                int unitId = entry.getKey();
+                ActionFeedback feedback = entry.getValue();
+                actionStatus.put(unitId, feedback);
+                //If one of my footmen has completed an action, he needs a new action
+                if(eventReason == null && mine.contains(unitId)) {
+                    if(feedback == ActionFeedback.COMPLETED) {
+                        eventReason = "action completed";
+                    } else if(feedback == ActionFeedback.INCOMPLETEMAYBESTUCK) {
+                        eventReason = "action stuck";
+                    }
+                }
+            }
+
+            for(BattleView.Damage hit : view.getDamage(t)) {
+                damage.add(hit);
+                damageDealt.merge(hit.attacker, hit.amount, Integer::sum);
+                damageTaken.merge(hit.defender, hit.amount, Integer::sum);
+                //The last unit to hit a defender gets the kill if it dies
+                lastHitBy.put(hit.defender, hit.attacker);
+                if(enemies.contains(hit.attacker)) {
+                    enemyTargets.put(hit.attacker, hit.defender);
+                }
+            }
+
+            //Any death, regardless of friend or foe, should be considered an event
+            for(int dead : view.getDeaths(t)) {
+                mine.remove(dead);
+                enemies.remove(dead);
+                actionStatus.remove(dead);
+                Integer killer = lastHitBy.remove(dead);
+                if(killer != null) {
+                    killedBy.put(dead, killer);
+                }
+                enemyTargets.remove(dead);
+                deaths.add(dead);
+                eventReason = "death";
+            }
+        }
+        lastTurn = turn - 1;
+        return true;
+    }
+
+    /**
+     * @return What made the last turn an event (an action finished or got stuck, or a unit died), or null
+     */
+    public String getEventReason() {
+        return eventReason;
+    }
+
+    /**
+     * @return Units that died on the turns read by the last update
+     */
+    public List<Integer> getDeaths() {
+        return deaths;
+    }
+
+    /**
+     * @return Hits landed on the turns read by the last update
+     */
+    public List<BattleView.Damage> getDamage() {
+        return damage;
+    }
+
+    public boolean isMine(int unitId) {
+        return mine.contains(unitId);
+    }
+
+    public boolean isAlive(int unitId) {
+        return mine.contains(unitId) || enemies.contains(unitId);
+    }
+
+    /**
+     * @return True if the unit finished its action, got stuck or failed, and needs a new one
+     */
+    public boolean isIdle(int unitId) {
+        ActionFeedback feedback = actionStatus.get(unitId);
+        return feedback == ActionFeedback.COMPLETED || feedback == ActionFeedback.INCOMPLETEMAYBESTUCK
+                || feedback == ActionFeedback.FAILED;
+    }
+
+    public int getDamageDealt(int unitId) {
+        Integer damage = damageDealt.get(unitId);
+        return damage != null ? damage : 0;
+    }
+
+    public int getDamageTaken(int unitId) {
+        Integer damage = damageTaken.get(unitId);
+        return damage != null ? damage : 0;
+    }
+
+    /**
+     * @return The unit that landed the last hit on a dead unit, or null if unknown
+     */
+    public Integer getKiller(int deadUnitId) {
+        return killedBy.get(deadUnitId);
+    }
+
+    /**
+     * @return The footman the enemy last damaged, or null if it has not hit anything yet
+     */
+    public Integer getEnemyTarget(int enemyId) {
+        return enemyTargets.get(enemyId);
+    }
+
+    /**
+     * @return Current target of every enemy that has hit something. Read-only view
+     */
+    public Map<Integer, Integer> getEnemyTargets() {
+        return Collections.unmodifiableMap(enemyTargets);
+    }
+}
@@ -0,0 +1,76 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionFeedback;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything RLAgent reads about the battle on one turn: the living units and the logs of the turns so far.
+ * SepiaBattleView answers it from SEPIA's state and history views. InProcessBattle answers it from its own
+ * simulation, which is how the agent runs without the engine.
+ */
+public interface BattleView {
+
+    int getTurnNumber();
+
+    /**
+     * @return Living units of the player
+     */
+    List<Integer> getUnitIds(int player);
+
+    /**
+     * @return True if the unit is alive
+     */
+    boolean hasUnit(int unitId);
+
+    /**
+     * Position and HP of a living unit. Undefined for dead units.
+     */
+    int getX(int unitId);
+
+    int getY(int unitId);
+
+    int getHP(int unitId);
+
+    /**
+     * @return Name of the unit's template, e.g. "Footman"
+     */
+    String getUnitName(int unitId);
+
+    /**
+     * @return Commands the player gave on that turn, by unit
+     */
+    Map<Integer, Action> getCommandsIssued(int player, int turn);
+
+    /**
+     * @return How the player's commands went on that turn, by unit
+     */
+    Map<Integer, ActionFeedback> getCommandFeedback(int player, int turn);
+
+    /**
+     * @return Every hit landed on that turn
+     */
+    List<Damage> getDamage(int turn);
+
+    /**
+     * @return Units that died on that turn
+     */
+    List<Integer> getDeaths(int turn);
+
+    /**
+     * One hit, the equivalent of a SEPIA DamageLog.
+     */
+    final class Damage {
+        public final int attacker, attackerPlayer, defender, defenderPlayer, amount;
+
+        public Damage(int attacker, int attackerPlayer, int defender, int defenderPlayer, int amount) {
+            this.attacker = attacker;
+            this.attackerPlayer = attackerPlayer;
+            this.defender = defender;
+            this.defenderPlayer = defenderPlayer;
+            this.amount = amount;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package edu.cwru.sepia.agent;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs RLAgent over a grid or a random sample of gamma, learningRate and epsilon, one SEPIA process per
+ * configuration and as many at a time as there are cores. Every run gets its own directory, so the weights
+ * file of one run never overwrites another.
+ *
+ * The SEPIA config is read from a template in which ${gamma}, ${learningRate}, ${epsilon} and ${numEpisodes}
+ * are replaced, e.g. {@code <Argument>gamma=${gamma}</Argument>}. The agent must be given printEvalCurve=true
+ * so it reports each evaluation block. Those lines are streamed to the console and to curve.csv in the run
+ * directory.
+ *
+ * Runs are pruned with asynchronous successive halving: the evaluation blocks minRung, minRung * eta,
+ * minRung * eta^2 ... are rungs, and a run that reaches a rung outside the top 1/eta of the runs seen at that
+ * rung so far is stopped. At the end a ranked summary is written to summary.csv and the weights of the best
+ * run are copied to best_weights.txt. If it ran with the Q-network, which has no weights.txt, its checkpoint
+ * is copied to best_learner_state.bin instead.
+ *
+ * Usage: HyperparameterSweep template=config.xml [out=sweep] [episodes=1000] [samples=N] [eta=3] [minRung=1]
+ *        [threads=N] [seed=N] [classpath=...] [gamma=0.8,0.9] [learningRate=0.00001:0.001] [epsilon=...]
+ *
+ * Parameters take a comma separated list of values for a grid search, or min:max for random search with
+ * samples configurations. learningRate ranges are sampled on a log scale.
+ */
+public class HyperparameterSweep {
+
+    /**
+     * Prefix of the evaluation lines printed by RLAgent when printEvalCurve is on.
+     */
+    public static final String EVAL_PREFIX = "EVAL ";
+
+    public static final String[] PARAMETERS = {"gamma", "learningRate", "epsilon"};
+    //RLAgent defaults, used for template placeholders of parameters that are not swept
+    public static final String[] DEFAULTS = {Double.toString(RLAgent.DEFAULT_GAMMA),
+            Double.toString(RLAgent.DEFAULT_LEARNING_RATE), Double.toString(RLAgent.DEFAULT_EPSILON)};
+
+    private final Map<String, String> options;
+    private final File outDir;
+    private final int eta;
+    private final int minRung;
+    //Scores reported at each rung so far, by rung number
+    private final Map<Integer, List<Double>> rungScores = new HashMap<>();
+
+    public HyperparameterSweep(Map<String, String> options) {
+        this.options = options;
+        this.outDir = new File(option("out", "sweep"));
+        this.eta = Integer.parseInt(option("eta", "3"));
+        this.minRung = Integer.parseInt(option("minRung", "1"));
+        if(eta < 2) {
+            throw new IllegalArgumentException("eta must be at least 2, got " + eta);
+        }
+        if(minRung < 1) {
+            throw new IllegalArgumentException("minRung must be at least 1, got " + minRung);
+        }
+    }
+
+    /**
+     * One configuration and what has been seen of it so far.
+     */
+    public static class Run {
+        public final int index;
+        public final Map<String, Double> params;
+        public final File dir;
+        public final List<Double> curve = new ArrayList<>();
+        public boolean pruned = false;
+        volatile Process process;
+
+        Run(int index, Map<String, Double> params, File dir) {
+            this.index = index;
+            this.params = params;
+            this.dir = dir;
+        }
+
+        public double lastScore() {
+            return curve.isEmpty() ? Double.NEGATIVE_INFINITY : curve.get(curve.size() - 1);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for(String arg : args) {
+            int split = arg.indexOf('=');
+            if(split < 0) {
+                System.err.println("Ignoring argument without a value: " + arg);
+                continue;
+            }
+            options.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+        if(!options.containsKey("template")) {
+            System.err.println("Usage: HyperparameterSweep template=config.xml [out=sweep] [episodes=N] [samples=N] "
+                    + "[eta=3] [minRung=1] [threads=N] [gamma=a,b,c|min:max] [learningRate=...] [epsilon=...]");
+            System.exit(1);
+        }
+        new HyperparameterSweep(options).run();
+    }
+
+    public List<Run> run() throws IOException, InterruptedException {
+        String template = new String(Files.readAllBytes(new File(options.get("template")).toPath()), StandardCharsets.UTF_8);
+        List<Map<String, Double>> space = searchSpace();
+        outDir.mkdirs();
+
+        final List<Run> runs = new ArrayList<>();
+        for(int i = 0; i < space.size(); i++) {
+            File dir = new File(outDir, "run-" + i);
+            dir.mkdirs();
+            String config = template.replace("${numEpisodes}", option("episodes", "1000"));
+            for(int p = 0; p < PARAMETERS.length; p++) {
+                Double value = space.get(i).get(PARAMETERS[p]);
+                config = config.replace("${" + PARAMETERS[p] + "}", value != null ? Double.toString(value) : DEFAULTS[p]);
+            }
+            Files.write(new File(dir, "config.xml").toPath(), config.getBytes(StandardCharsets.UTF_8));
+            runs.add(new Run(i, space.get(i), dir));
+        }
+        System.out.println("Sweeping " + runs.size() + " configurations.");
+
+        //If the sweep itself is killed, take the SEPIA processes down with it
+        Thread killChildren = new Thread() {
+            @Override
+            public void run() {
+                for(Run run : runs) {
+                    Process process = run.process;
+                    if(process != null && process.isAlive()) {
+                        process.destroyForcibly();
+                    }
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(killChildren);
+
+        int threads = Integer.parseInt(option("threads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for(final Run run : runs) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        execute(run);
+                    } catch(IOException | RuntimeException ex) {
+                        System.err.println("run-" + run.index + " failed. Reason: " + ex);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        Runtime.getRuntime().removeShutdownHook(killChildren);
+
+        List<Run> ranked = rank(runs);
+        writeSummary(ranked);
+        return ranked;
+    }
+
+    /**
+     * Launches the SEPIA process for a run and follows its output until it exits or is pruned. The process is
+     * killed if anything goes wrong on the way, so it can never be left blocked on a full pipe.
+     */
+    private void execute(Run run) throws IOException {
+        //The process runs in the run directory, so relative classpath entries have to be resolved first
+        StringBuilder classpath = new StringBuilder();
+        for(String entry : option("classpath", System.getProperty("java.class.path")).split(File.pathSeparator)) {
+            if(classpath.length() > 0) {
+                classpath.append(File.pathSeparator);
+            }
+            classpath.append(new File(entry).getAbsolutePath());
+        }
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", classpath.toString(), "edu.cwru.sepia.Main2", "config.xml");
+        builder.directory(run.dir);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.PIPE);
+        run.process = builder.start();
+
+        try {
+            follow(run);
+            run.process.waitFor();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if(run.process.isAlive()) {
+                run.process.destroyForcibly();
+            }
+        }
+    }
+
+    private void follow(Run run) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(run.process.getInputStream(), StandardCharsets.UTF_8));
+        BufferedWriter curve = new BufferedWriter(new FileWriter(new File(run.dir, "curve.csv"), false));
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                if(!line.startsWith(EVAL_PREFIX)) {
+                    continue;
+                }
+                String[] fields = line.substring(EVAL_PREFIX.length()).trim().split(" ");
+                double score;
+                try {
+                    score = Double.parseDouble(fields[1]);
+                } catch(NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                    System.err.println("run-" + run.index + " ignoring malformed line: " + line);
+                    continue;
+                }
+                run.curve.add(score);
+                curve.write(fields[0] + "," + score + "\n");
+                curve.flush();
+                System.out.println("run-" + run.index + " " + run.params + " episode " + fields[0] + ": " + score);
+
+                if(shouldPrune(run.curve.size(), score)) {
+                    run.pruned = true;
+                    System.out.println("run-" + run.index + " pruned after " + run.curve.size() + " evaluations.");
+                    run.process.destroy();
+                    break;
+                }
+            }
+        } finally {
+            curve.close();
+            reader.close();
+        }
+    }
+
+    /**
+     * Records a score if the evaluation count is a rung and decides whether the run falls behind.
+     *
+     * @param evaluations Number of evaluation blocks the run has finished
+     * @param score Its latest average cumulative reward
+     * @return True if the run is outside the top 1/eta of the runs that reached this rung
+     */
+    private synchronized boolean shouldPrune(int evaluations, double score) {
+        int rung = 0;
+        for(long at = minRung; at <= evaluations; at *= eta, rung++) {
+            if(at == evaluations) {
+                List<Double> scores = rungScores.get(rung);
+                if(scores == null) {
+                    scores = new ArrayList<>();
+                    rungScores.put(rung, scores);
+                }
+                scores.add(score);
+                if(scores.size() < eta) {
+                    return false;
+                }
+                List<Double> sorted = new ArrayList<>(scores);
+                Collections.sort(sorted, Collections.reverseOrder());
+                double cutoff = sorted.get(Math.max(0, sorted.size() / eta - 1));
+                return score < cutoff;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs that got further come first, then higher final score.
+     */
+    private List<Run> rank(List<Run> runs) {
+        List<Run> ranked = new ArrayList<>(runs);
+        Collections.sort(ranked, new Comparator<Run>() {
+            @Override
+            public int compare(Run a, Run b) {
+                if(a.curve.size() != b.curve.size()) {
+                    return Integer.compare(b.curve.size(), a.curve.size());
+                }
+                return Double.compare(b.lastScore(), a.lastScore());
+            }
+        });
+        return ranked;
+    }
+
+    private void writeSummary(List<Run> ranked) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(new File(outDir, "summary.csv"), false));
+        writer.write("rank,run,gamma,learningRate,epsilon,evaluations,score,pruned\n");
+        System.out.println("");
+        System.out.println("Rank  Run      Evaluations  Score      Parameters");
+        for(int i = 0; i < ranked.size(); i++) {
+            Run run = ranked.get(i);
+            writer.write((i + 1) + ",run-" + run.index + "," + run.params.get("gamma") + "," + run.params.get("learningRate")
+                    + "," + run.params.get("epsilon") + "," + run.curve.size() + "," + run.lastScore() + "," + run.pruned + "\n");
+            System.out.println(String.format("%-5d run-%-4d %-12d %-10.2f %s%s", i + 1, run.index, run.curve.size(),
+                    run.lastScore(), run.params, run.pruned ? " (pruned)" : ""));
+        }
+        writer.close();
+
+        if(!ranked.isEmpty()) {
+            File best = new File(ranked.get(0).dir, "agent_weights/weights.txt");
+            if(best.exists()) {
+                Files.copy(best.toPath(), new File(outDir, "best_weights.txt").toPath(), StandardCopyOption.REPLACE_EXISTING);
+                System.out.println("Best weights copied to " + new File(outDir, "best_weights.txt").getPath());
+            } else if(new File(ranked.get(0).dir, RLAgent.CHECKPOINT_FILE.getPath()).exists()) {
+                //Runs with the Q-network only save it in the checkpoint
+                File state = new File(outDir, "best_" + RLAgent.CHECKPOINT_FILE.getName());
+                Files.copy(new File(ranked.get(0).dir, RLAgent.CHECKPOINT_FILE.getPath()).toPath(), state.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                System.out.println("Best run has no weights.txt, its learner state was copied to " + state.getPath());
+            } else {
+                System.err.println("Best run did not save any weights.");
+            }
+        }
+    }
+
+    /**
+     * Expands the parameter options into configurations. Parameters that are not given keep the agent defaults.
+     */
+    private List<Map<String, Double>> searchSpace() {
+        List<Map<String, Double>> space = new ArrayList<>();
+        space.add(new LinkedHashMap<String, Double>());
+
+        if(options.containsKey("samples")) {
+            Random random = new Random(Long.parseLong(option("seed", "12345")));
+            int samples = Integer.parseInt(options.get("samples"));
+            space.clear();
+            for(int i = 0; i < samples; i++) {
+                Map<String, Double> params = new LinkedHashMap<>();
+                for(String name : PARAMETERS) {
+                    if(!options.containsKey(name)) {
+                        continue;
+                    }
+                    String[] range = options.get(name).split(":");
+                    double min = Double.parseDouble(range[0]);
+                    double max = Double.parseDouble(range[range.length - 1]);
+                    if(name.equals("learningRate") && min > 0) {
+                        params.put(name, Math.exp(Math.log(min) + random.nextDouble() * (Math.log(max) - Math.log(min))));
+                    } else {
+                        params.put(name, min + random.nextDouble() * (max - min));
+                    }
+                }
+                space.add(params);
+            }
+            return space;
+        }
+
+        for(String name : PARAMETERS) {
+            if(!options.containsKey(name)) {
+                continue;
+            }
+            List<Map<String, Double>> expanded = new ArrayList<>();
+            for(Map<String, Double> partial : space) {
+                for(String value : options.get(name).split(",")) {
+                    Map<String, Double> params = new LinkedHashMap<>(partial);
+                    params.put(name, Double.parseDouble(value));
+                    expanded.add(params);
+                }
+            }
+            space = expanded;
+        }
+        return space;
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+}
@@ -0,0 +1,358 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionFeedback;
+import edu.cwru.sepia.action.TargetedAction;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Plays a generated scenario against RLAgent inside the current JVM, without SEPIA's engine. The battle is
+ * simulated here and handed to the agent as a BattleView, so only the agent's own classes and SEPIA's Action
+ * values are involved.
+ *
+ * The rules follow what the agent can see of SEPIA's footman fights. Every unit keeps executing its last
+ * compound attack: it steps one tile towards its target (diagonals allowed, trees and units block) and hits it
+ * once adjacent. The command completes when the target dies, fails if the target is already dead, and is
+ * reported as maybe stuck when every step towards the target is blocked. A hit does between half and all of
+ * max(0, basic - armor) + piercing damage. Pathing is greedy instead of SEPIA's A*, so big armies get stuck
+ * behind obstacles more often than they would in the engine. The enemy is scripted to attack the nearest footman.
+ *
+ * Every call into the agent is timed, and the bytes allocated during it are counted over all threads.
+ */
+public class InProcessBattle implements BattleView {
+
+    public static final int PLAYER = 0;
+
+    /**
+     * Footman stats, roughly those of the assignment maps.
+     */
+    public static final int FOOTMAN_HP = 60;
+    public static final int FOOTMAN_BASIC_ATTACK = 6;
+    public static final int FOOTMAN_PIERCING_ATTACK = 3;
+    public static final int FOOTMAN_ARMOR = 2;
+
+    private static final int FREE = -1;
+    private static final int TREE = -2;
+
+    /**
+     * Told about every call into the agent.
+     */
+    public interface TurnObserver {
+        /**
+         * @param turn Turn number
+         * @param nanos Time spent in the agent
+         * @param allocatedBytes Bytes allocated by all threads during the call, or -1 if the JVM cannot tell
+         */
+        void turnTaken(int turn, long nanos, long allocatedBytes);
+    }
+
+    private final ScenarioGenerator.Scenario scenario;
+    private final long seed;
+    private Random random;
+
+    //Units by id: my footmen first, then the enemy's
+    private final int[] x, y, hp, owner, target;
+    //Unit id on each tile, FREE or TREE
+    private final int[] tiles;
+    private final List<List<Integer>> living = new ArrayList<>();
+    private int turn;
+
+    //Logs by turn
+    private final List<List<Map<Integer, Action>>> commands = new ArrayList<>();
+    private final List<List<Map<Integer, ActionFeedback>>> feedback = new ArrayList<>();
+    private final List<List<Damage>> damage = new ArrayList<>();
+    private final List<List<Integer>> deaths = new ArrayList<>();
+
+    private final com.sun.management.ThreadMXBean threads;
+    private long[] markedThreads, markedBytes;
+    //What reading the counters allocates by itself, subtracted from every measurement
+    private long allocationOverhead;
+
+    public InProcessBattle(ScenarioGenerator.Scenario scenario, long seed) {
+        this.scenario = scenario;
+        this.seed = seed;
+        int units = scenario.myFootmen.size() + scenario.enemyFootmen.size();
+        x = new int[units];
+        y = new int[units];
+        hp = new int[units];
+        owner = new int[units];
+        target = new int[units];
+        tiles = new int[scenario.xExtent * scenario.yExtent];
+        for(int p = 0; p < 2; p++) {
+            living.add(new ArrayList<Integer>());
+            commands.add(new ArrayList<Map<Integer, Action>>());
+            feedback.add(new ArrayList<Map<Integer, ActionFeedback>>());
+        }
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        threads = bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+                ? (com.sun.management.ThreadMXBean) bean : null;
+        if(threads != null) {
+            allocationOverhead = Long.MAX_VALUE;
+            for(int i = 0; i < 100; i++) {
+                markAllocation();
+                allocationOverhead = Math.min(allocationOverhead, allocatedSinceMark());
+            }
+        }
+    }
+
+    /**
+     * Plays one episode from the initial positions of the scenario.
+     *
+     * @param agent Agent controlling PLAYER
+     * @param maxTurns Turn limit, in case both armies get stuck
+     * @param observer Receives the timing of every agent call
+     * @return Number of turns played
+     */
+    public int runEpisode(RLAgent agent, int maxTurns, TurnObserver observer) {
+        reset();
+        while(true) {
+            if(turn > 0 && (living.get(PLAYER).isEmpty() || living.get(RLAgent.ENEMY_PLAYERNUM).isEmpty() || turn >= maxTurns)) {
+                agent.terminalStep(this);
+                return turn;
+            }
+
+            markAllocation();
+            long start = System.nanoTime();
+            Map<Integer, Action> actions = turn == 0 ? agent.initialStep(this) : agent.middleStep(this);
+            long nanos = System.nanoTime() - start;
+            observer.turnTaken(turn, nanos, threads != null ? Math.max(0, allocatedSinceMark() - allocationOverhead) : -1);
+
+            give(PLAYER, actions);
+            give(RLAgent.ENEMY_PLAYERNUM, enemyActions());
+            step();
+        }
+    }
+
+    private void reset() {
+        random = new Random(seed);
+        Arrays.fill(tiles, FREE);
+        for(Position position : scenario.obstacles) {
+            tiles[position.y * scenario.xExtent + position.x] = TREE;
+        }
+        int id = 0;
+        for(int p = 0; p < 2; p++) {
+            living.get(p).clear();
+            commands.get(p).clear();
+            feedback.get(p).clear();
+            for(Position position : p == PLAYER ? scenario.myFootmen : scenario.enemyFootmen) {
+                x[id] = position.x;
+                y[id] = position.y;
+                hp[id] = FOOTMAN_HP;
+                owner[id] = p;
+                target[id] = -1;
+                tiles[position.y * scenario.xExtent + position.x] = id;
+                living.get(p).add(id);
+                id++;
+            }
+        }
+        damage.clear();
+        deaths.clear();
+        turn = 0;
+    }
+
+    /**
+     * Records the commands of one player for this turn and makes them the units' current actions.
+     */
+    private void give(int player, Map<Integer, Action> actions) {
+        commands.get(player).add(actions);
+        for(Action action : actions.values()) {
+            int unit = action.getUnitId();
+            if(action instanceof TargetedAction && unit >= 0 && unit < owner.length && owner[unit] == player && hp[unit] > 0) {
+                target[unit] = ((TargetedAction) action).getTargetId();
+            }
+        }
+    }
+
+    /**
+     * Scripted enemy: every enemy without a living target attacks the nearest footman.
+     */
+    private Map<Integer, Action> enemyActions() {
+        Map<Integer, Action> actions = new HashMap<>();
+        List<Integer> footmen = living.get(PLAYER);
+        if(footmen.isEmpty()) {
+            return actions;
+        }
+        for(int enemy : living.get(RLAgent.ENEMY_PLAYERNUM)) {
+            if(target[enemy] >= 0 && hasUnit(target[enemy])) {
+                continue;
+            }
+            int best = footmen.get(0);
+            int bestDist = Integer.MAX_VALUE;
+            for(int footman : footmen) {
+                int dist = distance(enemy, footman);
+                if(dist < bestDist) {
+                    bestDist = dist;
+                    best = footman;
+                }
+            }
+            actions.put(enemy, Action.createCompoundAttack(enemy, best));
+        }
+        return actions;
+    }
+
+    /**
+     * Plays one turn. Units act in id order and a unit killed earlier in the turn does not act.
+     */
+    private void step() {
+        List<Map<Integer, ActionFeedback>> results = new ArrayList<>();
+        results.add(new HashMap<Integer, ActionFeedback>());
+        results.add(new HashMap<Integer, ActionFeedback>());
+        List<Damage> hits = new ArrayList<>();
+        List<Integer> dead = new ArrayList<>();
+
+        for(int unit = 0; unit < hp.length; unit++) {
+            int t = target[unit];
+            if(hp[unit] <= 0 || t < 0) {
+                continue;
+            }
+            Map<Integer, ActionFeedback> result = results.get(owner[unit]);
+            if(t >= hp.length || hp[t] <= 0 || owner[t] == owner[unit]) {
+                result.put(unit, ActionFeedback.FAILED);
+                target[unit] = -1;
+            } else if(distance(unit, t) <= 1) {
+                int full = Math.max(0, FOOTMAN_BASIC_ATTACK - FOOTMAN_ARMOR) + FOOTMAN_PIERCING_ATTACK;
+                int dealt = Math.min(hp[t], (full + 1) / 2 + random.nextInt(full / 2 + 1));
+                hp[t] -= dealt;
+                hits.add(new Damage(unit, owner[unit], t, owner[t], dealt));
+                if(hp[t] <= 0) {
+                    dead.add(t);
+                    tiles[y[t] * scenario.xExtent + x[t]] = FREE;
+                    result.put(unit, ActionFeedback.COMPLETED);
+                    target[unit] = -1;
+                } else {
+                    result.put(unit, ActionFeedback.INCOMPLETE);
+                }
+            } else {
+                result.put(unit, moveTowards(unit, t) ? ActionFeedback.INCOMPLETE : ActionFeedback.INCOMPLETEMAYBESTUCK);
+            }
+        }
+
+        for(int unit : dead) {
+            living.get(owner[unit]).remove(Integer.valueOf(unit));
+        }
+        feedback.get(PLAYER).add(results.get(PLAYER));
+        feedback.get(RLAgent.ENEMY_PLAYERNUM).add(results.get(RLAgent.ENEMY_PLAYERNUM));
+        damage.add(hits);
+        deaths.add(dead);
+        turn++;
+    }
+
+    /**
+     * Takes the diagonal step towards the target if it is free, otherwise the straight one along either axis.
+     *
+     * @return False if every step was blocked
+     */
+    private boolean moveTowards(int unit, int t) {
+        int dx = Integer.signum(x[t] - x[unit]);
+        int dy = Integer.signum(y[t] - y[unit]);
+        int[][] steps = {{dx, dy}, {dx, 0}, {0, dy}};
+        for(int[] s : steps) {
+            if(s[0] == 0 && s[1] == 0) {
+                continue;
+            }
+            Position next = new Position(x[unit] + s[0], y[unit] + s[1]);
+            if(next.inBounds(scenario.xExtent, scenario.yExtent) && tiles[next.y * scenario.xExtent + next.x] == FREE) {
+                tiles[y[unit] * scenario.xExtent + x[unit]] = FREE;
+                x[unit] = next.x;
+                y[unit] = next.y;
+                tiles[next.y * scenario.xExtent + next.x] = unit;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int distance(int a, int b) {
+        return Math.max(Math.abs(x[a] - x[b]), Math.abs(y[a] - y[b]));
+    }
+
+    private void markAllocation() {
+        markedThreads = threads.getAllThreadIds();
+        markedBytes = threads.getThreadAllocatedBytes(markedThreads);
+    }
+
+    /**
+     * Bytes allocated by every live thread since markAllocation, including threads started in between.
+     * Threads that ended in between are missed.
+     */
+    private long allocatedSinceMark() {
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = threads.getThreadAllocatedBytes(ids);
+        long total = 0;
+        for(int i = 0; i < ids.length; i++) {
+            if(bytes[i] < 0) {
+                continue;
+            }
+            long before = 0;
+            for(int j = 0; j < markedThreads.length; j++) {
+                if(markedThreads[j] == ids[i]) {
+                    before = Math.max(0, markedBytes[j]);
+                    break;
+                }
+            }
+            total += bytes[i] - before;
+        }
+        return total;
+    }
+
+    @Override
+    public int getTurnNumber() {
+        return turn;
+    }
+
+    @Override
+    public List<Integer> getUnitIds(int player) {
+        return Collections.unmodifiableList(living.get(player));
+    }
+
+    @Override
+    public boolean hasUnit(int unitId) {
+        return unitId >= 0 && unitId < hp.length && hp[unitId] > 0;
+    }
+
+    @Override
+    public int getX(int unitId) {
+        return x[unitId];
+    }
+
+    @Override
+    public int getY(int unitId) {
+        return y[unitId];
+    }
+
+    @Override
+    public int getHP(int unitId) {
+        return hp[unitId];
+    }
+
+    @Override
+    public String getUnitName(int unitId) {
+        return "Footman";
+    }
+
+    @Override
+    public Map<Integer, Action> getCommandsIssued(int player, int turn) {
+        List<Map<Integer, Action>> log = commands.get(player);
+        return turn >= 0 && turn < log.size() ? log.get(turn) : Collections.<Integer, Action>emptyMap();
+    }
+
+    @Override
+    public Map<Integer, ActionFeedback> getCommandFeedback(int player, int turn) {
+        List<Map<Integer, ActionFeedback>> log = feedback.get(player);
+        return turn >= 0 && turn < log.size() ? log.get(turn) : Collections.<Integer, ActionFeedback>emptyMap();
+    }
+
+    @Override
+    public List<Damage> getDamage(int turn) {
+        return turn >= 0 && turn < damage.size() ? damage.get(turn) : Collections.<Damage>emptyList();
+    }
+
+    @Override
+    public List<Integer> getDeaths(int turn) {
+        return turn >= 0 && turn < deaths.size() ? deaths.get(turn) : Collections.<Integer>emptyList();
+    }
+}
@@ -0,0 +1,154 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Random;
+
+/**
+ * Small multilayer Q-function: the feature vector goes through one hidden layer of ReLUs into a single linear
+ * output. It can represent interactions between features, like low HP and already being targeted, which the
+ * linear Q-function cannot.
+ *
+ * All parameters live in one flat array laid out as [W1 (hidden x inputs), b1 (hidden), W2 (hidden), b2].
+ * Evaluation writes only into arrays owned by the caller, so it does not allocate and can run on several
+ * threads at once. Training reuses one internal buffer and must not run concurrently with anything else.
+ */
+public class MlpQFunction {
+
+    public final int inputs;
+    public final int hidden;
+
+    private final double[] params;
+    private final int b1, w2, b2;
+    //Inputs are multiplied by these before the first layer so features of different magnitude train evenly
+    private final double[] inputScale;
+    //TD errors are clipped to this size so the -100 death reward does not blow up the hidden layer
+    private final double errorClip;
+
+    private final double[] input;
+    private final double[] activations;
+
+    /**
+     * @param inputs Size of the feature vector
+     * @param hidden Number of hidden units
+     * @param inputScale Factor applied to each feature
+     * @param errorClip Largest TD error used for a single update
+     * @param random Used for the initial weights
+     */
+    public MlpQFunction(int inputs, int hidden, double[] inputScale, double errorClip, Random random) {
+        this.inputs = inputs;
+        this.hidden = hidden;
+        this.inputScale = inputScale.clone();
+        this.errorClip = errorClip;
+        b1 = hidden * inputs;
+        w2 = b1 + hidden;
+        b2 = w2 + hidden;
+        params = new double[b2 + 1];
+        input = new double[inputs];
+        activations = new double[hidden];
+
+        // He initialization for the ReLU layer, small output weights
+        double range = Math.sqrt(6.0 / inputs);
+        for(int i = 0; i < b1; i++) {
+            params[i] = (random.nextDouble() * 2 - 1) * range;
+        }
+        for(int j = 0; j < hidden; j++) {
+            params[w2 + j] = (random.nextDouble() * 2 - 1) / hidden;
+        }
+    }
+
+    /**
+     * Evaluates n feature vectors stored back to back in x. Goes through the hidden units in the outer loop so
+     * each row of W1 is read once for the whole batch.
+     *
+     * @param x n * inputs features, row major
+     * @param n Number of rows
+     * @param out Receives the n Q-values
+     */
+    public void evaluateBatch(double[] x, int n, double[] out) {
+        for(int r = 0; r < n; r++) {
+            out[r] = params[b2];
+        }
+        for(int j = 0; j < hidden; j++) {
+            int row = j * inputs;
+            double bias = params[b1 + j];
+            double outWeight = params[w2 + j];
+            for(int r = 0, offset = 0; r < n; r++, offset += inputs) {
+                double pre = bias;
+                for(int i = 0; i < inputs; i++) {
+                    pre += params[row + i] * x[offset + i] * inputScale[i];
+                }
+                if(pre > 0) {
+                    out[r] += outWeight * pre;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param features One feature vector
+     * @return Its Q-value
+     */
+    public double evaluate(double[] features) {
+        double q = params[b2];
+        for(int j = 0; j < hidden; j++) {
+            int row = j * inputs;
+            double pre = params[b1 + j];
+            for(int i = 0; i < inputs; i++) {
+                pre += params[row + i] * features[i] * inputScale[i];
+            }
+            if(pre > 0) {
+                q += params[w2 + j] * pre;
+            }
+        }
+        return q;
+    }
+
+    /**
+     * One step of gradient descent on the squared TD error of a single transition.
+     *
+     * @param features Features of the state and action that were taken
+     * @param target Reward plus the discounted value of the best next action
+     * @param learningRate Step size
+     */
+    public void train(double[] features, double target, double learningRate) {
+        for(int i = 0; i < inputs; i++) {
+            input[i] = features[i] * inputScale[i];
+        }
+        double q = params[b2];
+        for(int j = 0; j < hidden; j++) {
+            int row = j * inputs;
+            double pre = params[b1 + j];
+            for(int i = 0; i < inputs; i++) {
+                pre += params[row + i] * input[i];
+            }
+            activations[j] = pre > 0 ? pre : 0;
+            q += params[w2 + j] * activations[j];
+        }
+
+        double error = Math.max(-errorClip, Math.min(errorClip, target - q));
+        double step = learningRate * error;
+        for(int j = 0; j < hidden; j++) {
+            if(activations[j] > 0) {
+                // gradient through the hidden unit uses W2 before it is updated
+                double hiddenStep = step * params[w2 + j];
+                int row = j * inputs;
+                for(int i = 0; i < inputs; i++) {
+                    params[row + i] += hiddenStep * input[i];
+                }
+                params[b1 + j] += hiddenStep;
+            }
+            params[w2 + j] += step * activations[j];
+        }
+        params[b2] += step;
+    }
+
+    /**
+     * @return The parameter array itself, for checkpoints
+     */
+    public double[] getParameters() {
+        return params;
+    }
+
+    public void setParameters(double[] values) {
+        System.arraycopy(values, 0, params, 0, params.length);
+    }
+}
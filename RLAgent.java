@@ -1,17 +1,17 @@
 package edu.cwru.sepia.agent;
 
 import edu.cwru.sepia.action.Action;
-import edu.cwru.sepia.action.ActionFeedback;
-import edu.cwru.sepia.action.ActionResult;
 import edu.cwru.sepia.action.TargetedAction;
-import edu.cwru.sepia.environment.model.history.DamageLog;
-import edu.cwru.sepia.environment.model.history.DeathLog;
 import edu.cwru.sepia.environment.model.history.History;
 import edu.cwru.sepia.environment.model.state.State;
-import edu.cwru.sepia.environment.model.state.Unit;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 public class RLAgent extends Agent {
 
@@ -24,8 +24,8 @@ public class RLAgent extends Agent {
     public int currEpisode = 0;
     public int totalEp = 0;
     
-    public final int numLearnEps = 10;
-    public final int numEvalEps = 5;
+    public final int numLearnEps;
+    public final int numEvalEps;
     public int currEvalEps = 0;
     public boolean isLearning;
     
@@ -50,8 +50,9 @@ public class RLAgent extends Agent {
 
     /** Use this random number generator for your epsilon exploration. When you submit we will
      * change this seed so make sure that your agent works for more than the default seed.
+     * Not final so loadPlayerData can restore its state.
      */
-    public final Random random = new Random(12345);
+    public Random random = new Random(12345);
 
     /**
      * Your Q-function weights.
@@ -59,11 +60,13 @@ public class RLAgent extends Agent {
     public Double[] weights;
     
     //Track the weights and features from the previous turns
-    public HashMap<Integer, Double[]> prevFeatures; //Map of the features for each footman in the previous turn
-    //Track the last known commands issues to all units on the field
+    public HashMap<Integer, double[]> prevFeatures; //Map of the features for each footman in the previous turn, arrays are reused
+    //Track the last known commands issued to my units
     public HashMap<Integer, Action> lastCommands;
+    //Running state built from the history logs: deaths, action status, damage and enemy targets
+    public BattleTracker tracker;
     //Tracks the cumulative rewards of each of the testing episodes in a block of testing episodes
-    public Double[] cumulativeRewards = new Double[numEvalEps];
+    public Double[] cumulativeRewards;
     
     public LinkedList<Double> averageRewards = new LinkedList<>();
     
@@ -71,10 +74,88 @@ public class RLAgent extends Agent {
      * These variables are set for you according to the assignment definition. You can change them,
      * but it is not recommended. If you do change them please let us know and explain your reasoning for
      * changing them.
+     *
+     * They can be overridden with the gamma, learningRate and epsilon options, which is what
+     * HyperparameterSweep does.
+     */
+    public final double gamma;
+    public final double learningRate;
+    public final double epsilon;
+    public static final double DEFAULT_GAMMA = 0.9;
+    public static final double DEFAULT_LEARNING_RATE = .0001;
+    public static final double DEFAULT_EPSILON = .02;
+    
+    //Print a line for every finished evaluation block so HyperparameterSweep can follow the learning curve
+    public boolean printEvalCurve = false;
+    //Write weights.txt and the checkpoint after every episode. Off for runs that should leave agent_weights alone
+    public boolean persistState = true;
+    
+    /**
+     * Optional tabular layer on top of the linear Q-function. Null unless the tabularCacheKB option is given.
+     * Hits in calcQValue skip the feature vector entirely, misses fall back to the weights.
      */
-    public final double gamma = 0.9;
-    public final double learningRate = .0001;
-    public final double epsilon = .02;
+    public TabularQCache tabularCache;
+    public double tabularLearningRate = 0.1;
+    //Packed state key of the action each footman was last given, so its table entry can be backed up
+    public HashMap<Integer, Long> prevKeys = new HashMap<>();
+    
+    //Bucket sizes used when discretizing a state for the tabular cache
+    public static final int HP_BUCKET = 10;
+    public static final int MAX_BUCKET = 15;
+    
+    /**
+     * Pool for the parallel decision mode. Null unless the decisionThreads option is given, in which case
+     * middleStep splits the footmen across the pool against frozen weights (see parallelDecisions). This is a
+     * separate, batched mode rather than a faster sequential loop: it cannot be combined with turnDeadlineNanos
+     * or rolloutsPerTarget, and it learns differently as soon as there is more than one footman.
+     */
+    public ForkJoinPool decisionPool;
+    //Footmen handled by one task before it stops splitting
+    public static final int DECISION_LEAF_SIZE = 4;
+    
+    /**
+     * Per turn time budget for the sequential decision loop, set with the turnDeadlineNanos option. 0 means
+     * no budget. When the budget runs out the remaining footmen keep their last command or fall back to
+     * the nearest enemy, and their weight updates are deferred to the next turn (see anytimeDecisions).
+     */
+    public long turnDeadlineNanos = 0;
+    /**
+     * Transitions of footmen whose weight update was skipped because the turn ran out of time, oldest first.
+     * The last one belongs to the footman's current command and keeps collecting reward until the footman
+     * is re-planned, the earlier ones were closed by a fallback command.
+     */
+    public LinkedHashMap<Integer, List<PendingUpdate>> deferredUpdates = new LinkedHashMap<>();
+    
+    /**
+     * Optional Monte Carlo planner used by the sequential decision loops. Null unless the rolloutsPerTarget
+     * option is given. Its average rollout return is blended with calcQValue by rolloutBlend.
+     */
+    public RolloutPlanner planner;
+    public double rolloutBlend = 0.5;
+    //Rollout returns of the decision being made, only used by the sequential loops
+    private double[] plannerReturns = new double[0];
+    
+    /**
+     * Optional multilayer Q-function, set with the mlpHidden option. When it is on it replaces the dot product
+     * in calcQValue and updateWeights trains it instead of the linear weights.
+     */
+    public MlpQFunction mlp;
+    public double mlpLearningRate = 0.001;
+    //Brings the features to roughly the same range: constant, distance, HP difference, attackers, attacking me
+    public static final double[] MLP_INPUT_SCALE = {1.0, 0.1, 0.02, 0.2, 1.0};
+    //Buffers for evaluating all enemies at once, one set per thread
+    private final ThreadLocal<CandidateBuffers> candidateBuffers = ThreadLocal.withInitial(CandidateBuffers::new);
+    //Raw fields of the pair being evaluated and a feature vector to put them in, one of each per thread
+    private final ThreadLocal<PairFields> pairFields = ThreadLocal.withInitial(PairFields::new);
+    private final ThreadLocal<double[]> featureScratch = ThreadLocal.withInitial(() -> new double[NUM_FEATURES]);
+    //Enemy fields of the current turn, see snapshotEnemies
+    private final EnemySnapshot enemySnapshot = new EnemySnapshot();
+    //Features of a footman with nothing on record. Never written to
+    private static final double[] NO_FEATURES = new double[NUM_FEATURES];
+    
+    //Flight recorder event for the episode in progress, and what triggered the last decision
+    private AgentEvents.Episode episodeEvent;
+    private String lastEventReason;
     
     /**
      * Helper class to represent individual footmen.
@@ -85,26 +166,29 @@ public class RLAgent extends Agent {
     	public int id, x, y, hp, team;
     	public int lastTarget;
     	public boolean dead = false;
-    	public Footman(int id, State.StateView sv, History.HistoryView hv) {
+    	public Footman(int id, BattleView view) {
     		this.id = id;
-    		this.team = (myFootmen.contains(id)) ? 0 : ENEMY_PLAYERNUM;
-    		if(sv.getUnit(id) == null) {
+    		this.team = (tracker.isMine(id)) ? 0 : ENEMY_PLAYERNUM;
+    		if(!view.hasUnit(id)) {
 				this.dead = true;
 			}
     		//Presumably every action here is a composite attack, and thus a Targeted Action
     		TargetedAction lastAction = (TargetedAction) lastCommands.get(id);
+    		//Enemy targets are not known, only inferred from whom they hit last
+    		Integer enemyTarget = tracker.getEnemyTarget(id);
     		if(lastAction != null) {
     			this.lastTarget = lastAction.getTargetId();
+    		} else if(enemyTarget != null) {
+    			this.lastTarget = enemyTarget;
     		} else { 
     			this.lastTarget = enemyFootmen.get(0); 
     		}
     		if(!dead) {
-	    		Unit.UnitView unit = sv.getUnit(id);
-	    		this.x = unit.getXPosition();
-	    		this.y = unit.getYPosition();
-	    		this.hp = unit.getHP();
+	    		this.x = view.getX(id);
+	    		this.y = view.getY(id);
+	    		this.hp = view.getHP(id);
     		}
-    		//If dead, the unit object will return null when trying to retrieve position
+    		//If dead, the unit has no position
     		else {
     			this.x = 0; this.y = 0; this.hp = 0;
     		}
@@ -120,6 +204,100 @@ public class RLAgent extends Agent {
     		return Math.max(Math.abs(x - enemy.x), Math.abs(y - enemy.y));
     	}
     }
+    
+    /**
+     * Raw fields of an (attacker, defender) pair. The features and the tabular key are both made from these,
+     * so they are only read from the view once per pair.
+     */
+    private static class PairFields {
+    	int attackerId, attackerX, attackerY;
+    	int distance, attackerHp, defenderHp, attackersOn;
+    	boolean defenderAttacking;
+    }
+    
+    /**
+     * Scratch space of candidateValues. Only the enemies without a table entry get features, and with the
+     * network on they are packed together for one batched pass.
+     */
+    private static class CandidateBuffers {
+    	double[] features = new double[0], values = features, batchValues = features;
+    	int[] misses = new int[0];
+    	
+    	void ensureCapacity(int n) {
+    		if(values.length < n) {
+    			int capacity = Math.max(n, Math.max(16, values.length * 2));
+    			features = new double[capacity * NUM_FEATURES];
+    			values = new double[capacity];
+    			batchValues = new double[capacity];
+    			misses = new int[capacity];
+    		}
+    	}
+    }
+    
+    /**
+     * What the features need to know about each enemy on one turn, in enemyFootmen order. The number of my
+     * footmen on each target is counted once from the commands in effect when the turn's decisions start,
+     * so evaluating a pair does not go through them again.
+     */
+    private static class EnemySnapshot {
+    	int turn = -1, episode = -1;
+    	int size = 0;
+    	int[] ids = new int[0], x = ids, y = ids, hp = ids, lastTarget = ids, attackersOn = ids;
+    	//Same counts by target, for targets that are not living enemies
+    	final HashMap<Integer, Integer> attackers = new HashMap<>();
+    	
+    	void resize(int n) {
+    		size = n;
+    		if(ids.length < n) {
+    			int capacity = Math.max(n, ids.length * 2);
+    			ids = new int[capacity];
+    			x = new int[capacity];
+    			y = new int[capacity];
+    			hp = new int[capacity];
+    			lastTarget = new int[capacity];
+    			attackersOn = new int[capacity];
+    		}
+    	}
+    	
+    	/**
+    	 * @return Index of the enemy, or -1 if it is not in the snapshot
+    	 */
+    	int indexOf(int unitId) {
+    		for(int e = 0; e < size; e++) {
+    			if(ids[e] == unitId) {
+    				return e;
+    			}
+    		}
+    		return -1;
+    	}
+    }
+    
+    /**
+     * A state and action waiting to be backed up, with the discounted reward collected since the action was
+     * given. The target is reward + discount * max Q of the state it is finally backed up in.
+     */
+    public static class PendingUpdate {
+    	public final double[] features;
+    	public final Long key;
+    	public double reward = 0.0;
+    	public double discount = 1.0;
+    	
+    	/**
+    	 * @param features Copied, since the recorded features of a footman are overwritten in place
+    	 */
+    	public PendingUpdate(double[] features, Long key) {
+    		this.features = features.clone();
+    		this.key = key;
+    	}
+    	
+    	/**
+    	 * Adds the reward of one more turn
+    	 */
+    	public void collect(double turnReward, double gamma) {
+    		reward += discount * turnReward;
+    		discount *= gamma;
+    	}
+    }
 
     public RLAgent(int playernum, String[] args) {
         super(playernum);
@@ -139,10 +317,26 @@ public class RLAgent extends Agent {
             System.out.println("Warning! Load weights argument not specified. Defaulting to not loading.");
         }
 
+        String option = getOption(args, "gamma");
+        gamma = option != null ? Double.parseDouble(option) : DEFAULT_GAMMA;
+        option = getOption(args, "learningRate");
+        learningRate = option != null ? Double.parseDouble(option) : DEFAULT_LEARNING_RATE;
+        option = getOption(args, "epsilon");
+        epsilon = option != null ? Double.parseDouble(option) : DEFAULT_EPSILON;
+        option = getOption(args, "numLearnEps");
+        numLearnEps = option != null ? Integer.parseInt(option) : 10;
+        option = getOption(args, "numEvalEps");
+        numEvalEps = option != null ? Integer.parseInt(option) : 5;
+        cumulativeRewards = new Double[numEvalEps];
+        printEvalCurve = Boolean.parseBoolean(getOption(args, "printEvalCurve"));
+        option = getOption(args, "persistState");
+        persistState = option == null || Boolean.parseBoolean(option);
+
         if (loadWeights) {
             weights = loadWeights();
-        } else {
-            // initialize weights to random values between -1 and 1
+        }
+        if (weights == null) {
+            // initialize weights to random values between -1 and 1, also when there were none to load
             weights = new Double[NUM_FEATURES];
             for (int i = 0; i < weights.length; i++) {
                 weights[i] = random.nextDouble() * 2 - 1;
@@ -155,17 +349,122 @@ public class RLAgent extends Agent {
         if(lastCommands == null) {
         	lastCommands = new HashMap<>();
         }
+        tracker = new BattleTracker(playernum);
+        
+        //Optional settings are passed as name=value after the two positional arguments
+        String cacheKB = getOption(args, "tabularCacheKB");
+        if(cacheKB != null) {
+        	tabularCache = new TabularQCache(Long.parseLong(cacheKB) * 1024);
+        	System.out.println("Using tabular Q cache with " + tabularCache.capacity() + " slots.");
+        }
+        String tabularRate = getOption(args, "tabularLearningRate");
+        if(tabularRate != null) {
+        	tabularLearningRate = Double.parseDouble(tabularRate);
+        }
+        String deadline = getOption(args, "turnDeadlineNanos");
+        if(deadline != null) {
+        	turnDeadlineNanos = Long.parseLong(deadline);
+        }
+        String decisionThreads = getOption(args, "decisionThreads");
+        if(decisionThreads != null) {
+        	decisionPool = new ForkJoinPool(Integer.parseInt(decisionThreads));
+        	System.out.println("Making decisions in parallel on " + decisionPool.getParallelism() + " threads.");
+        }
+        String rollouts = getOption(args, "rolloutsPerTarget");
+        if(decisionPool != null && (turnDeadlineNanos > 0 || rollouts != null)) {
+        	//The batched mode has no order to cut off at a deadline and no single decision to plan for
+        	System.err.println("Warning! turnDeadlineNanos and rolloutsPerTarget only apply to the sequential decision loop."
+        			+ " Ignoring them since decisionThreads is set.");
+        	turnDeadlineNanos = 0;
+        	rollouts = null;
+        }
+        if(rollouts != null) {
+        	String depth = getOption(args, "rolloutDepth");
+        	String budget = getOption(args, "rolloutBudgetNanos");
+        	String blend = getOption(args, "rolloutBlend");
+        	String seed = getOption(args, "rolloutSeed");
+        	planner = new RolloutPlanner(Integer.parseInt(rollouts),
+        			depth != null ? Integer.parseInt(depth) : 10,
+        			budget != null ? Long.parseLong(budget) : 1000000,
+        			gamma,
+        			!"random".equals(getOption(args, "rolloutPolicy")),
+        			seed != null ? Long.parseLong(seed) : 12345,
+        			ForkJoinPool.commonPool());
+        	if(blend != null) {
+        		rolloutBlend = Double.parseDouble(blend);
+        	}
+        }
+        
+        String mlpHidden = getOption(args, "mlpHidden");
+        if(mlpHidden != null) {
+        	//Own generator so turning the network on does not shift the exploration random numbers
+        	mlp = new MlpQFunction(NUM_FEATURES, Integer.parseInt(mlpHidden), MLP_INPUT_SCALE, 10.0, new Random(12345));
+        	String mlpRate = getOption(args, "mlpLearningRate");
+        	if(mlpRate != null) {
+        		mlpLearningRate = Double.parseDouble(mlpRate);
+        	}
+        	System.out.println("Using a Q-network with " + mlp.hidden + " hidden units.");
+        	System.out.println("The linear weights are not trained, so weights.txt is not written. The network is saved in "
+        			+ CHECKPOINT_FILE.getPath() + ".");
+        }
+        
+        //Pick up the rest of the learner state where the last run stopped
+        if (loadWeights && CHECKPOINT_FILE.exists()) {
+        	try (InputStream in = new FileInputStream(CHECKPOINT_FILE)) {
+        		readPlayerData(in);
+        		System.out.println("Resuming from episode " + totalEp + ".");
+        	} catch(IOException | RuntimeException ex) {
+        		System.err.println("Failed to load learner state. Reason: " + ex.getMessage());
+        	}
+        }
+    }
+    
+    /**
+     * Looks up an optional name=value argument. The first two arguments are always the episode count and
+     * the load weights flag.
+     * @param args Agent arguments from the SEPIA config
+     * @param name Option name
+     * @return The value, or null if the option is not present
+     */
+    private static String getOption(String[] args, String name) {
+    	for(int i = 2; i < args.length; i++) {
+    		if(args[i].startsWith(name + "=")) {
+    			return args[i].substring(name.length() + 1);
+    		}
+    	}
+    	return null;
     }
 
     /**
-     * We've implemented some setup code for your convenience. Change what you need to.
+     * SEPIA entry points. They only wrap the views, the agent itself reads the battle through BattleView.
      */
     @Override
     public Map<Integer, Action> initialStep(State.StateView sv, History.HistoryView hv) {
+        return initialStep(new SepiaBattleView(sv, hv));
+    }
+
+    @Override
+    public Map<Integer, Action> middleStep(State.StateView sv, History.HistoryView hv) {
+        return middleStep(new SepiaBattleView(sv, hv));
+    }
+
+    @Override
+    public void terminalStep(State.StateView sv, History.HistoryView hv) {
+        terminalStep(new SepiaBattleView(sv, hv));
+    }
+
+    /**
+     * We've implemented some setup code for your convenience. Change what you need to.
+     */
+    public Map<Integer, Action> initialStep(BattleView view) {
+    	AgentEvents.Phase event = new AgentEvents.Phase();
+    	event.begin();
     	
     	// at the beginning of a turn
-        if (sv.getTurnNumber() == 0) {
+        if (view.getTurnNumber() == 0) {
         	handleEpisodeCount();
+        	episodeEvent = new AgentEvents.Episode();
+        	episodeEvent.begin();
         	timestep = 0;
         	//Need to initialize the cumulativeRewards
         	for(int i = 0; i < cumulativeRewards.length; i++) {
@@ -175,10 +474,8 @@ public class RLAgent extends Agent {
 
         // Find all of your units
         myFootmen = new LinkedList<>();
-        for (Integer unitId : sv.getUnitIds(playernum)) {
-            Unit.UnitView unit = sv.getUnit(unitId);
-
-            String unitName = unit.getTemplateView().getName().toLowerCase();
+        for (Integer unitId : view.getUnitIds(playernum)) {
+            String unitName = view.getUnitName(unitId).toLowerCase();
             if (unitName.equals("footman")) {
                 myFootmen.add(unitId);
             } else {
@@ -188,10 +485,8 @@ public class RLAgent extends Agent {
 
         // Find all of the enemy units
         enemyFootmen = new LinkedList<>();
-        for (Integer unitId : sv.getUnitIds(ENEMY_PLAYERNUM)) {
-            Unit.UnitView unit = sv.getUnit(unitId);
-
-            String unitName = unit.getTemplateView().getName().toLowerCase();
+        for (Integer unitId : view.getUnitIds(ENEMY_PLAYERNUM)) {
+            String unitName = view.getUnitName(unitId).toLowerCase();
             if (unitName.equals("footman")) {
                 enemyFootmen.add(unitId);
             } else {
@@ -199,7 +494,19 @@ public class RLAgent extends Agent {
             }
         }
 
-        return middleStep(sv, hv);
+        if (view.getTurnNumber() == 0) {
+        	tracker.reset(myFootmen, enemyFootmen);
+        	//Unit ids are reused by the next episode, so no commands or deferred updates carry over
+        	lastCommands.clear();
+        	deferredUpdates.clear();
+        	if(planner != null) {
+        		planner.beginEpisode();
+        	}
+        }
+
+        Map<Integer, Action> actions = middleStep(view);
+        commitPhase(event, AgentEvents.INITIAL_STEP, view, null);
+        return actions;
     }
 
     /**
@@ -218,47 +525,343 @@ public class RLAgent extends Agent {
      *
      * @return New actions to execute or nothing if an event has not occurred.
      */
-    @Override
-    public Map<Integer, Action> middleStep(State.StateView sv, History.HistoryView hv) {
+    public Map<Integer, Action> middleStep(BattleView view) {
+    	AgentEvents.Phase event = new AgentEvents.Phase();
+    	event.begin();
     	
     	HashMap<Integer, Action> sepiaActions = new HashMap<Integer, Action>();
     	timestep++;
     	
-    	//Don't look for deaths on first turn
-    	if(sv.getTurnNumber() > 1) {
-    		//Remove all dead units from the unit lists
-    		for(DeathLog deathLog : hv.getDeathLogs(sv.getTurnNumber() -1)) {
-    			//System.out.println("Death- Player: " + deathLog.getController() + " unit: " + deathLog.getDeadUnitID());
-    			if(myFootmen.contains(deathLog.getDeadUnitID())) {
-    				myFootmen.remove(myFootmen.indexOf(deathLog.getDeadUnitID()));
-    			} else {
-    				enemyFootmen.remove(enemyFootmen.indexOf(deathLog.getDeadUnitID()));
-    			}
+    	//Read only the logs of the turn that just finished. The planner's damage model sees every turn
+    	AgentEvents.Phase readEvent = new AgentEvents.Phase();
+    	readEvent.begin();
+    	boolean newLogs = tracker.update(view.getTurnNumber(), view);
+    	if(newLogs && planner != null) {
+    		planner.observeDamage(tracker.getDamage(), playernum);
+    	}
+    	commitPhase(readEvent, AgentEvents.READ_LOGS, view, newLogs ? null : "already read");
+    	//Remove all dead units from the unit lists
+    	for(Integer dead : tracker.getDeaths()) {
+    		if(!myFootmen.remove(dead)) {
+    			enemyFootmen.remove(dead);
     		}
     	}
     	
-    	if(eventHasOccurred(sv, hv) || sv.getTurnNumber() == 0) {
-        	for(Integer f: myFootmen) {
-        		double reward = calculateReward(sv, hv, f);
-        		//First check if this footman has previous features on record
-        		Double[] oldFeatures = prevFeatures.get(f);
-        		//If not, give 0 for all features
-        		if(oldFeatures == null) {
-        			oldFeatures = new Double[]{0.0,0.0,0.0,0.0,0.0};
-        		}
-        		weights = updateWeights(weights, oldFeatures, reward, sv, hv, f);
-        		int newTarget = selectAction(sv, hv, f);
-        		sepiaActions.put(f,Action.createCompoundAttack(f, newTarget));
-        		//Keep a record of all of the latest commands issued
-        		lastCommands.put(f,Action.createCompoundAttack(f, newTarget));
-        	}
+    	if(eventHasOccurred(view) || view.getTurnNumber() == 0) {
+    		//Built before any decision so the parallel tasks only read it
+    		snapshotEnemies(view);
+    		if(decisionPool != null) {
+    			parallelDecisions(view, sepiaActions);
+    		} else if(turnDeadlineNanos > 0) {
+    			anytimeDecisions(view, sepiaActions);
+    		} else {
+    			for(Integer f: myFootmen) {
+    				double reward = calculateReward(view, f);
+    				//First check if this footman has previous features on record
+    				double[] oldFeatures = prevFeatures.get(f);
+    				//If not, give 0 for all features
+    				if(oldFeatures == null) {
+    					oldFeatures = NO_FEATURES;
+    				}
+    				weights = updateWeights(weights, oldFeatures, reward, view, f);
+    				int newTarget = selectPlannedAction(view, f, Long.MAX_VALUE);
+    				//Record the features of the chosen target, in the state the choice was made in
+    				calculateFeatureVector(view, f, newTarget);
+    				if(tabularCache != null) {
+    					prevKeys.put(f, stateKey(view, f, newTarget));
+    				}
+    				sepiaActions.put(f,Action.createCompoundAttack(f, newTarget));
+    				//Keep a record of all of the latest commands issued
+    				lastCommands.put(f,Action.createCompoundAttack(f, newTarget));
+    			}
+    		}
         	if(!isLearning) {
-        		cumulativeRewards[currEvalEps-1] += cumulativeReward(sv, hv);
+        		cumulativeRewards[currEvalEps-1] += cumulativeReward(view);
         	}
          }
     	
+    	commitPhase(event, AgentEvents.MIDDLE_STEP, view, sepiaActions.isEmpty() ? null : lastEventReason);
     	return sepiaActions;
     }
+    
+    /**
+     * Fills in and commits a flight recorder phase event. Does nothing unless a recording wants it.
+     * @param event Event that was begun at the start of the phase
+     * @param phase One of the AgentEvents phase names
+     * @param view
+     * @param reason What the phase reacted to, or null
+     */
+    private void commitPhase(AgentEvents.Phase event, String phase, BattleView view, String reason) {
+    	if(event.shouldCommit()) {
+    		event.phase = phase;
+    		event.turn = view.getTurnNumber();
+    		event.episode = totalEp;
+    		event.myFootmen = myFootmen != null ? myFootmen.size() : 0;
+    		event.enemyFootmen = enemyFootmen != null ? enemyFootmen.size() : 0;
+    		event.reason = reason;
+    		event.commit();
+    	}
+    }
+    
+    /**
+     * Version of the decision loop in middleStep that stops re-planning once the turn deadline has passed.
+     * Footmen are handled in priority order: idle or stuck first, then those whose target died, then the
+     * ones deferred from earlier turns, then the rest. Footmen that miss the deadline keep their last command
+     * if its target is still alive or are sent at the nearest enemy otherwise. Either way the reward of the
+     * turn is added to their pending transition, and a fallback command closes it and opens a new one for the
+     * fallback's features. Everything pending is backed up the next time the footman is re-planned.
+     * @param view
+     * @param sepiaActions Map to put the new actions in
+     */
+    private void anytimeDecisions(BattleView view, Map<Integer, Action> sepiaActions) {
+    	long deadline = System.nanoTime() + turnDeadlineNanos;
+    	
+    	List<Integer> idleFootmen = new ArrayList<>();
+    	List<Integer> targetDied = new ArrayList<>();
+    	List<Integer> deferred = new ArrayList<>();
+    	List<Integer> rest = new ArrayList<>();
+    	for(Integer f : myFootmen) {
+    		TargetedAction last = (TargetedAction) lastCommands.get(f);
+    		if(last == null || tracker.isIdle(f)) {
+    			idleFootmen.add(f);
+    		} else if(!tracker.isAlive(last.getTargetId())) {
+    			targetDied.add(f);
+    		} else if(deferredUpdates.containsKey(f)) {
+    			deferred.add(f);
+    		} else {
+    			rest.add(f);
+    		}
+    	}
+    	List<Integer> order = idleFootmen;
+    	order.addAll(targetDied);
+    	order.addAll(deferred);
+    	order.addAll(rest);
+    	
+    	for(Integer f : order) {
+    		List<PendingUpdate> pending = deferredUpdates.remove(f);
+    		if(pending == null) {
+    			double[] oldFeatures = prevFeatures.get(f);
+    			if(oldFeatures == null) {
+    				oldFeatures = NO_FEATURES;
+    			}
+    			pending = new ArrayList<>();
+    			pending.add(new PendingUpdate(oldFeatures, prevKeys.get(f)));
+    		}
+    		//The tracker only keeps this turn's damage, so the reward has to be collected now either way
+    		pending.get(pending.size() - 1).collect(calculateReward(view, f), gamma);
+    		
+    		if(System.nanoTime() - deadline >= 0) {
+    			deferredUpdates.put(f, pending);
+    			TargetedAction last = (TargetedAction) lastCommands.get(f);
+    			if(last == null || tracker.isIdle(f) || !tracker.isAlive(last.getTargetId())) {
+    				int fallback = nearestEnemy(view, f);
+    				double[] features = calculateFeatureVector(view, f, fallback);
+    				if(tabularCache != null) {
+    					prevKeys.put(f, stateKey(view, f, fallback));
+    				}
+    				pending.add(new PendingUpdate(features, prevKeys.get(f)));
+    				sepiaActions.put(f, Action.createCompoundAttack(f, fallback));
+    				lastCommands.put(f, Action.createCompoundAttack(f, fallback));
+    			}
+    			continue;
+    		}
+    		updateDeferred(pending, view, f);
+    		int newTarget = selectPlannedAction(view, f, deadline - System.nanoTime());
+    		calculateFeatureVector(view, f, newTarget);
+    		if(tabularCache != null) {
+    			prevKeys.put(f, stateKey(view, f, newTarget));
+    		}
+    		sepiaActions.put(f,Action.createCompoundAttack(f, newTarget));
+    		lastCommands.put(f,Action.createCompoundAttack(f, newTarget));
+    	}
+    }
+    
+    /**
+     * Cheap fallback target: the closest living enemy by Chebyshev distance
+     * @param view
+     * @param footmanId
+     * @return
+     */
+    private int nearestEnemy(BattleView view, int footmanId) {
+    	int x = view.getX(footmanId);
+    	int y = view.getY(footmanId);
+    	int best = enemyFootmen.get(0);
+    	int bestDist = Integer.MAX_VALUE;
+    	for(int enemy : enemyFootmen) {
+    		if(!view.hasUnit(enemy)) {
+    			continue;
+    		}
+    		int dist = Math.max(Math.abs(x - view.getX(enemy)), Math.abs(y - view.getY(enemy)));
+    		if(dist < bestDist) {
+    			bestDist = dist;
+    			best = enemy;
+    		}
+    	}
+    	return best;
+    }
+    
+    /**
+     * Batched decision mode, run instead of the decision loop in middleStep. It is not a parallel copy of that
+     * loop: it makes two passes over the same state and history views, which SEPIA does not change during the
+     * turn. First every footman's update is computed against the same frozen copy of the weights. Each task
+     * sums the weight deltas of its footmen and the per task sums are added back in a fixed split order, so the
+     * result does not depend on the number of threads. Then every footman chooses its new action against the
+     * merged weights.
+     *
+     * The random numbers for exploration are drawn up front in the same order the sequential loop draws them
+     * and the same features are recorded, so with one footman this makes exactly the decisions of the
+     * sequential loop. With more footmen a footman does not see the updates of the footmen before it in the
+     * same turn, which the sequential loop does, so the two modes learn different weights. There is no turn
+     * deadline and no rollout planner here.
+     * @param view
+     * @param sepiaActions Map to put the new actions in
+     */
+    private void parallelDecisions(BattleView view, Map<Integer, Action> sepiaActions) {
+    	ParallelTurn turn = new ParallelTurn(view);
+    	double[] deltas = decisionPool.invoke(turn.new UpdateTask(0, turn.footmen.length));
+    	
+    	//Merge everything back in footman order. Recorded as one updateWeights phase for the whole turn,
+    	//where the sequential loop records one per footman
+    	AgentEvents.Phase event = new AgentEvents.Phase();
+    	event.begin();
+    	if(mlp == null) {
+    		for(int i = 0; i < weights.length; i++) {
+    			weights[i] = turn.frozenWeights[i] + deltas[i];
+    		}
+    	}
+    	for(int i = 0; i < turn.footmen.length; i++) {
+    		if(mlp != null) {
+    			mlp.train(turn.features[i], turn.targets[i], mlpLearningRate);
+    		}
+    		backupTable(prevKeys.get(turn.footmen[i]), turn.oldQ[i], turn.targets[i]);
+    	}
+    	commitPhase(event, AgentEvents.UPDATE_WEIGHTS, view, mlp != null ? "network merge" : "linear merge");
+    	
+    	decisionPool.invoke(turn.new ChoiceTask(0, turn.footmen.length));
+    	for(int i = 0; i < turn.footmen.length; i++) {
+    		int f = turn.footmen[i];
+    		sepiaActions.put(f, Action.createCompoundAttack(f, turn.newTargets[i]));
+    		lastCommands.put(f, Action.createCompoundAttack(f, turn.newTargets[i]));
+    		if(tabularCache != null) {
+    			prevKeys.put(f, turn.newKeys[i]);
+    		}
+    	}
+    }
+    
+    /**
+     * Read-only inputs and per footman outputs of one parallel decision pass. Tasks only write to the
+     * slots of their own footmen.
+     */
+    private class ParallelTurn {
+    	final BattleView view;
+    	final Double[] frozenWeights;
+    	final int[] footmen;
+    	final double[] bootstrapRolls, actionRolls;
+    	
+    	final double[] oldQ, targets;
+    	final int[] newTargets;
+    	//Recorded features of each footman. Read by the updates, then overwritten with the new action's
+    	final double[][] features;
+    	final long[] newKeys;
+    	
+    	ParallelTurn(BattleView view) {
+    		this.view = view;
+    		frozenWeights = weights.clone();
+    		int n = myFootmen.size();
+    		footmen = new int[n];
+    		bootstrapRolls = new double[n];
+    		actionRolls = new double[n];
+    		features = new double[n][];
+    		int i = 0;
+    		for(Integer f : myFootmen) {
+    			footmen[i] = f;
+    			//A footman with nothing on record starts from zeros, like the sequential loop
+    			features[i] = prevFeatures.get(f);
+    			if(features[i] == null) {
+    				features[i] = new double[NUM_FEATURES];
+    				prevFeatures.put(f, features[i]);
+    			}
+    			//Same draw order as updateWeights then selectAction in the sequential loop
+    			bootstrapRolls[i] = random.nextDouble();
+    			actionRolls[i] = random.nextDouble();
+    			i++;
+    		}
+    		oldQ = new double[n];
+    		targets = new double[n];
+    		newTargets = new int[n];
+    		newKeys = new long[n];
+    	}
+    	
+    	/**
+    	 * Computes the updates of the footmen in [from, to) and returns the sum of their weight deltas.
+    	 */
+    	class UpdateTask extends RecursiveTask<double[]> {
+    		final int from, to;
+    		
+    		UpdateTask(int from, int to) {
+    			this.from = from;
+    			this.to = to;
+    		}
+    		
+    		@Override
+    		protected double[] compute() {
+    			if(to - from > DECISION_LEAF_SIZE) {
+    				int mid = (from + to) >>> 1;
+    				UpdateTask left = new UpdateTask(from, mid);
+    				left.fork();
+    				double[] right = new UpdateTask(mid, to).compute();
+    				double[] sum = left.join();
+    				for(int i = 0; i < sum.length; i++) {
+    					sum[i] += right[i];
+    				}
+    				return sum;
+    			}
+    			double[] delta = new double[frozenWeights.length];
+    			for(int i = from; i < to; i++) {
+    				int f = footmen[i];
+    				double reward = calculateReward(view, f);
+    				oldQ[i] = qValueOf(features[i], frozenWeights);
+    				int bestTarget = chooseTarget(view, f, frozenWeights, bootstrapRolls[i]);
+    				targets[i] = reward + gamma * calcQValue(view, f, bestTarget, frozenWeights);
+    				//The network is trained at the merge instead
+    				if(mlp == null) {
+    					for(int j = 0; j < frozenWeights.length; j++) {
+    						delta[j] += learningRate * (targets[i] - oldQ[i]) * features[i][j];
+    					}
+    				}
+    			}
+    			return delta;
+    		}
+    	}
+    	
+    	/**
+    	 * Chooses the new actions of the footmen in [from, to) once the weights have been merged.
+    	 */
+    	class ChoiceTask extends RecursiveAction {
+    		final int from, to;
+    		
+    		ChoiceTask(int from, int to) {
+    			this.from = from;
+    			this.to = to;
+    		}
+    		
+    		@Override
+    		protected void compute() {
+    			if(to - from > DECISION_LEAF_SIZE) {
+    				int mid = (from + to) >>> 1;
+    				invokeAll(new ChoiceTask(from, mid), new ChoiceTask(mid, to));
+    				return;
+    			}
+    			for(int i = from; i < to; i++) {
+    				int f = footmen[i];
+    				newTargets[i] = chooseTarget(view, f, weights, actionRolls[i]);
+    				PairFields pair = readPair(view, f, newTargets[i], pairFields.get());
+    				fillFeatures(pair, features[i], 0);
+    				newKeys[i] = packKey(pair);
+    			}
+    		}
+    	}
+    }
 
     /**
      * Here you will calculate the cumulative average rewards for your testing episodes. If you have just
@@ -266,26 +869,47 @@ public class RLAgent extends Agent {
      *
      * It is also a good idea to save your weights with the saveWeights function.
      */
-    @Override
-    public void terminalStep(State.StateView sv, History.HistoryView hv) {
+    public void terminalStep(BattleView view) {
+    	AgentEvents.Phase event = new AgentEvents.Phase();
+    	event.begin();
 
         // MAKE SURE YOU CALL printTestData after you finish a test episode.
     	// And terminalStep ALWAYS happens at the end of the episode- we don't need to perform any check on that
     	if(!isLearning) {
     		if(currEvalEps == numEvalEps) {
     			averageRewards.add(averageCumulative());
+    			if(printEvalCurve) {
+    				System.out.println(HyperparameterSweep.EVAL_PREFIX + totalEp + " " + averageRewards.getLast());
+    			}
     			if(totalEp == numEpisodes) {
     				printTestData(averageRewards);
     			}
     		}
     	}
     	
-        // Save your weights
-        saveWeights(weights);
+        if(persistState) {
+        	// Save your weights. The network does not train them, its parameters are in the checkpoint
+        	if(mlp == null) {
+        		AgentEvents.Phase saveEvent = new AgentEvents.Phase();
+        		saveEvent.begin();
+        		saveWeights(weights);
+        		commitPhase(saveEvent, AgentEvents.SAVE_WEIGHTS, view, null);
+        	}
+        	
+        	// Save the rest of player data
+        	writeCheckpoint();
+        }
         
-        // Save the rest of player data
-        savePlayerData(System.out);
-
+        commitPhase(event, AgentEvents.TERMINAL_STEP, view, isLearning ? "learning" : "evaluation");
+        if(episodeEvent != null && episodeEvent.shouldCommit()) {
+        	episodeEvent.episode = totalEp;
+        	episodeEvent.learning = isLearning;
+        	episodeEvent.turns = view.getTurnNumber();
+        	episodeEvent.myFootmen = myFootmen != null ? myFootmen.size() : 0;
+        	episodeEvent.enemyFootmen = enemyFootmen != null ? enemyFootmen.size() : 0;
+        	episodeEvent.commit();
+        }
+        episodeEvent = null;
     }
     
     /**
@@ -301,27 +925,15 @@ public class RLAgent extends Agent {
      * for(ActionResult result : actionResults.values()) {
      *     System.out.println(result.toString());
      * }
-     * @param sv
-     * @param hv
+     * @param view
      * @return
      */
-    private boolean eventHasOccurred(State.StateView sv, History.HistoryView hv) {
-    	Map<Integer, ActionResult> actionResults = hv.getCommandFeedback(playernum, sv.getTurnNumber() - 1);
-    	//If one of my footmen has completed an action, he needs a new action
-    	for(ActionResult result : actionResults.values()) {
-    		if(myFootmen.contains(result.getAction().getUnitId()) && (result.getFeedback() == ActionFeedback.COMPLETED || result.getFeedback() == ActionFeedback.INCOMPLETEMAYBESTUCK)) {
-    			return true;
-    		}
-    	}
-    	//Any death, regardless of friend or foe, should be considered an event
-    	if(!hv.getDeathLogs(sv.getTurnNumber() -1).isEmpty()) {
-    		//for(DeathLog deathLog : hv.getDeathLogs(sv.getTurnNumber() -1)) {
-    			//System.out.println("Player: " + deathLog.getController() + " unit: " + deathLog.getDeadUnitID());
-    		//}
-    	    return true;
-    	}
-    	//else 
-    	return false;
+    private boolean eventHasOccurred(BattleView view) {
+    	AgentEvents.Phase event = new AgentEvents.Phase();
+    	event.begin();
+    	lastEventReason = view.getTurnNumber() == 0 ? "first turn" : tracker.getEventReason();
+    	commitPhase(event, AgentEvents.EVENT_CHECK, view, lastEventReason);
+    	return lastEventReason != null && view.getTurnNumber() != 0;
     }
     
     /**
@@ -353,7 +965,7 @@ public class RLAgent extends Agent {
     }
 
     /**
-     * Calculate the updated weights for this agent. 
+     * updateWeights on the SEPIA views, for callers written against them.
      * @param oldWeights Weights prior to update
      * @param oldFeatures Features from (s,a)
      * @param totalReward Cumulative discounted reward for this footman.
@@ -363,42 +975,241 @@ public class RLAgent extends Agent {
      * @return The updated weight vector.
      */
     public Double[] updateWeights(Double[] oldWeights, Double[] oldFeatures, double totalReward, State.StateView sv, History.HistoryView hv, int footmanId) {
-    	double reward = calculateReward(sv, hv, footmanId);
-    	int bestTarget = selectAction(sv, hv, footmanId);
-    	double oldQ = 0.0; //Qw(s,a)
-    	for(int i = 0; i < oldWeights.length; i++) {
-    		oldQ += oldWeights[i] * oldFeatures[i];
+    	double[] features = new double[oldFeatures.length];
+    	for(int i = 0; i < features.length; i++) {
+    		features[i] = oldFeatures[i];
+    	}
+    	return updateWeights(oldWeights, features, totalReward, new SepiaBattleView(sv, hv), footmanId);
+    }
+
+    /**
+     * Calculate the updated weights for this agent. 
+     * @param oldWeights Weights prior to update
+     * @param oldFeatures Features from (s,a)
+     * @param totalReward Cumulative discounted reward for this footman.
+     * @param view Current state and history of the game.
+     * @param footmanId The footman we are updating the weights for
+     * @return The updated weight vector.
+     */
+    public Double[] updateWeights(Double[] oldWeights, double[] oldFeatures, double totalReward, BattleView view, int footmanId) {
+    	AgentEvents.Phase event = new AgentEvents.Phase();
+    	event.begin();
+    	double nextQ = calcQValue(view, footmanId, selectAction(view, footmanId));
+    	Double[] updated = applyUpdate(oldWeights, oldFeatures, prevKeys.get(footmanId), totalReward, gamma, nextQ);
+    	commitPhase(event, AgentEvents.UPDATE_WEIGHTS, view, mlp != null ? "network" : "linear");
+    	return updated;
+    }
+    
+    /**
+     * updateWeights for the transitions a footman has collected, possibly over several turns. A transition
+     * closed by a fallback command is bootstrapped from the value of that command, the one after it in the
+     * list. Only the last one is bootstrapped from the current state.
+     * @param pending Transitions of the footman, oldest first
+     * @param view
+     * @param footmanId
+     */
+    private void updateDeferred(List<PendingUpdate> pending, BattleView view, int footmanId) {
+    	AgentEvents.Phase event = new AgentEvents.Phase();
+    	event.begin();
+    	int last = pending.size() - 1;
+    	for(int i = 0; i < last; i++) {
+    		PendingUpdate update = pending.get(i);
+    		double nextQ = qValueOf(pending.get(i + 1).features, weights);
+    		weights = applyUpdate(weights, update.features, update.key, update.reward, update.discount, nextQ);
+    	}
+    	double nextQ = calcQValue(view, footmanId, selectAction(view, footmanId));
+    	PendingUpdate update = pending.get(last);
+    	weights = applyUpdate(weights, update.features, update.key, update.reward, update.discount, nextQ);
+    	commitPhase(event, AgentEvents.UPDATE_WEIGHTS, view, pending.size() > 1 ? "deferred" : mlp != null ? "network" : "linear");
+    }
+    
+    /**
+     * One TD step towards reward + discount * nextQ
+     * @param key Tabular key of the state and action, or null
+     * @param reward Discounted reward collected since the action was given
+     * @param discount Discount of the state the target is bootstrapped from
+     * @param nextQ Value of the best action in that state
+     */
+    private Double[] applyUpdate(Double[] oldWeights, double[] oldFeatures, Long key, double reward, double discount, double nextQ) {
+    	double oldQ = qValueOf(oldFeatures, oldWeights); //Qw(s,a)
+    	double target = reward + discount * nextQ;
+    	if(mlp != null) {
+    		//Same TD target, but the gradient goes through the network
+    		mlp.train(oldFeatures, target, mlpLearningRate);
+    		backupTable(key, oldQ, target);
+    		return oldWeights;
     	}
     	//wi <- wi + alpha * (R(s,a) + gamma * max a' Qw(s',a') - Qw(s,a)) * fi(s,a)
     	for(int i = 0; i < oldWeights.length; i++) {
-        	weights[i] = oldWeights[i] + learningRate * 
-        			(reward + gamma * calcQValue(sv, hv, footmanId, bestTarget) - oldQ) * oldFeatures[i];
+        	weights[i] = oldWeights[i] + learningRate * (target - oldQ) * oldFeatures[i];
         }
+    	backupTable(key, oldQ, target);
     	return weights;
     }
+    
+    /**
+     * Backs up the tabular entry of a state and action. A new entry starts from the linear estimate.
+     * @param key Tabular key of the state and action, or null if it has none
+     * @param oldQ Linear Q-value of the previous state and action
+     * @param target Reward plus the discounted value of the best next action
+     */
+    private void backupTable(Long key, double oldQ, double target) {
+    	if(tabularCache != null && key != null) {
+    		double tableQ = tabularCache.get(key);
+    		if(Double.isNaN(tableQ)) {
+    			tableQ = oldQ;
+    		}
+    		tabularCache.put(key, tableQ + tabularLearningRate * (target - tableQ));
+    	}
+    }
+
+    /**
+     * selectAction on the SEPIA views, for callers written against them.
+     * @param sv Current state of the game
+     * @param hv The history of the game
+     * @param attackerId The footman that will be attacking
+     * @return The enemy footman ID this unit should attack
+     */
+    public int selectAction(State.StateView sv, History.HistoryView hv, int attackerId) {
+        return selectAction(new SepiaBattleView(sv, hv), attackerId);
+    }
 
     /**
      * Given a footman and the current state and history of the game select the enemy that this unit should
      * attack. This is where you would do the epsilon-greedy action selection.
      *
-     * @param sv Current state of the game
-     * @param hv The entire history of this episode
+     * @param view Current state and history of the game
      * @param attackerId The footman that will be attacking
      * @return The enemy footman ID this unit should attack
      */
-    public int selectAction(State.StateView sv, History.HistoryView hv, int attackerId) {
+    public int selectAction(BattleView view, int attackerId) {
+        double[] values = candidateValues(view, attackerId, weights);
+        EnemySnapshot enemies = enemies(view);
         double maxValue = 0.0;
         int targetId = enemyFootmen.get(0);
         //Attack the enemy which has the highest value associated with it
-        for(int enemy: enemyFootmen) {
-        	double attackingValue = calcQValue(sv, hv, attackerId, enemy);
+        for(int e = 0; e < enemies.size; e++) {
+        	if(values[e] > maxValue) {
+        		maxValue = values[e];
+        		targetId = enemies.ids[e];
+        	}
+        }
+        
+        return explore(targetId, random.nextDouble());
+    }
+    
+    /**
+     * Q-values of attacking each enemy in enemyFootmen order, the same values calcQValue gives. The attacker is
+     * read once and the enemies come from the turn's snapshot. Tabular hits are used as they are, without
+     * features. With the network on, the misses go through it in one batched pass. Once the buffers have
+     * grown to the number of enemies this does not allocate.
+     * @param view
+     * @param attackerId
+     * @param w Linear weights to evaluate with
+     * @return This thread's value buffer. Only valid until the next call on the same thread
+     */
+    private double[] candidateValues(BattleView view, int attackerId, Double[] w) {
+    	EnemySnapshot enemies = enemies(view);
+    	int n = enemies.size;
+    	CandidateBuffers buffers = candidateBuffers.get();
+    	buffers.ensureCapacity(n);
+    	double[] features = buffers.features;
+    	double[] values = buffers.values;
+    	
+    	PairFields pair = readAttacker(view, attackerId, pairFields.get());
+    	int misses = 0;
+    	for(int e = 0; e < n; e++) {
+    		readEnemy(enemies, e, pair);
+    		if(tabularCache != null) {
+    			double tableQ = tabularCache.get(packKey(pair));
+    			if(!Double.isNaN(tableQ)) {
+    				values[e] = tableQ;
+    				continue;
+    			}
+    		}
+    		if(mlp == null) {
+    			fillFeatures(pair, features, 0);
+    			values[e] = dot(features, 0, w);
+    		} else {
+    			fillFeatures(pair, features, misses * NUM_FEATURES);
+    			buffers.misses[misses++] = e;
+    		}
+    	}
+    	if(misses > 0) {
+    		mlp.evaluateBatch(features, misses, buffers.batchValues);
+    		for(int i = 0; i < misses; i++) {
+    			values[buffers.misses[i]] = buffers.batchValues[i];
+    		}
+    	}
+    	return values;
+    }
+    
+    /**
+     * selectAction for the action a footman will actually take. If the rollout planner is on, the value of
+     * each enemy blends calcQValue with the average return of the rollouts against that enemy.
+     * @param view
+     * @param attackerId
+     * @param remainingNanos Time left for this turn's decisions, the rollouts stop by then
+     * @return The enemy footman ID this unit should attack
+     */
+    private int selectPlannedAction(BattleView view, int attackerId, long remainingNanos) {
+        if(planner == null) {
+        	return selectAction(view, attackerId);
+        }
+        planner.beginTurn(view, myFootmen, enemyFootmen, lastCommands, tracker.getEnemyTargets());
+        EnemySnapshot enemies = enemies(view);
+        if(plannerReturns.length < enemies.size) {
+        	plannerReturns = new double[Math.max(enemies.size, plannerReturns.length * 2)];
+        }
+        double[] returns = plannerReturns;
+        planner.evaluate(attackerId, enemies.ids, enemies.size, returns, remainingNanos);
+        double[] values = candidateValues(view, attackerId, weights);
+        
+        double maxValue = 0.0;
+        int targetId = enemyFootmen.get(0);
+        for(int e = 0; e < enemies.size; e++) {
+        	double attackingValue = values[e];
+        	if(!Double.isNaN(returns[e])) {
+        		attackingValue = (1 - rolloutBlend) * attackingValue + rolloutBlend * returns[e];
+        	}
         	if(attackingValue > maxValue) {
         		maxValue = attackingValue;
-        		targetId = enemy;
+        		targetId = enemies.ids[e];
         	}
         }
-        
-        double randomVal = random.nextDouble();
+        return explore(targetId, random.nextDouble());
+    }
+    
+    /**
+     * Same as selectAction but with explicit weights and a pre-drawn random number. Safe to call from several
+     * threads at once.
+     * @param view
+     * @param attackerId
+     * @param w Weights to evaluate with
+     * @param randomVal Random number in [0, 1) for the exploration check
+     * @return The enemy footman ID this unit should attack
+     */
+    private int chooseTarget(BattleView view, int attackerId, Double[] w, double randomVal) {
+        double[] values = candidateValues(view, attackerId, w);
+        EnemySnapshot enemies = enemies(view);
+        double maxValue = 0.0;
+        int targetId = enemyFootmen.get(0);
+        for(int e = 0; e < enemies.size; e++) {
+        	if(values[e] > maxValue) {
+        		maxValue = values[e];
+        		targetId = enemies.ids[e];
+        	}
+        }
+        return explore(targetId, randomVal);
+    }
+    
+    /**
+     * Epsilon-greedy step of the action selection
+     * @param targetId The greedy target
+     * @param randomVal Random number in [0, 1)
+     * @return The greedy target, or a random one with probability epsilon
+     */
+    private int explore(int targetId, double randomVal) {
         if(randomVal > epsilon) {
         	return targetId;
         }
@@ -411,6 +1222,17 @@ public class RLAgent extends Agent {
     }
     
 
+    /**
+     * calculateReward on the SEPIA views, for callers written against them.
+     * @param sv The current state of the game.
+     * @param hv History of the states and actions in the game
+     * @param footmanId The footman ID you are looking for the reward from.
+     * @return The current reward
+     */
+    public double calculateReward(State.StateView sv, History.HistoryView hv, int footmanId) {
+    	return calculateReward(new SepiaBattleView(sv, hv), footmanId);
+    }
+
     /**
      * Given the current state and the footman in question calculate the reward received on the last turn.
      * This is where you will check for things like Did this footman take or give damage? Did this footman die
@@ -439,18 +1261,18 @@ public class RLAgent extends Agent {
      *     System.out.println("Unit " + commandEntry.getKey() + " was command to " + commandEntry.getValue().toString);
      * }
      *
-     * @param sv The current state of the game.
-     * @param historyView History of the episode up until this turn.
+     * @param view The current state and history of the game.
      * @param footmanId The footman ID you are looking for the reward from.
      * @return The current reward
      */
-    public double calculateReward(State.StateView sv, History.HistoryView hv, int footmanId) {
-    	Footman attacker = new Footman(footmanId, sv, hv);
-    	Footman defender = new Footman(attacker.lastTarget, sv, hv);
+    public double calculateReward(BattleView view, int footmanId) {
+    	Footman attacker = new Footman(footmanId, view);
+    	Footman defender = new Footman(attacker.lastTarget, view);
     	
-    	//Killed target?
+    	//Killed target? Only the footman that landed the last hit gets the credit
     	double killedTarget = 0;
-    	if(defender.dead) {
+    	Integer killer = tracker.getKiller(defender.id);
+    	if(defender.dead && killer != null && killer == attacker.id) {
     		killedTarget = 30; //Some large number, likely larger than either damage given or taken
     	}
     	
@@ -460,29 +1282,14 @@ public class RLAgent extends Agent {
     		return -100;
     	}
     	
-    	//Damage dealt
-    	double damageDealt = 0;
-    	for(DamageLog damageLog : hv.getDamageLogs(sv.getTurnNumber()-1)) {
-    		if(damageLog.getAttackerID() == attacker.id) {
-    			damageDealt = damageLog.getDamage();
-    			break;
-    		}
-    	}
-    	
-    	//Damage taken
-    	double damageTaken = 0;
-    	for(DamageLog damageLog : hv.getDamageLogs(sv.getTurnNumber()-1)) {
-    		if(damageLog.getDefenderID() == attacker.id) {
-    			damageTaken += damageLog.getDamage();
-    			//Evidence that the last command issued to this enemy unit was to attack this unit
-    			lastCommands.put(defender.id, Action.createCompoundAttack(defender.id, attacker.id));
-    		}
-    	}
+    	//Damage dealt and taken last turn, from the tracker
+    	double damageDealt = tracker.getDamageDealt(attacker.id);
+    	double damageTaken = tracker.getDamageTaken(attacker.id);
     	
     	//Started action last turn
     	//I guess it's beneficial if this footman just recently started an action?
     	double startedLastTurn = 0;
-    	Action action = hv.getCommandsIssued(playernum, sv.getTurnNumber()-1).get(attacker.id);
+    	Action action = view.getCommandsIssued(playernum, view.getTurnNumber()-1).get(attacker.id);
     	if(action != null) {
     		startedLastTurn = 10;
     	}
@@ -492,14 +1299,13 @@ public class RLAgent extends Agent {
     
     /**
      * The total, discounted reward from this turn
-     * @param sv
-     * @param hv
+     * @param view
      * @return
      */
-    private double cumulativeReward(State.StateView sv, History.HistoryView hv) {
+    private double cumulativeReward(BattleView view) {
     	double totalReward = 0.0;
     	for(Integer f: myFootmen) {
-    		totalReward += Math.pow(gamma, timestep) * calculateReward(sv, hv, f);
+    		totalReward += Math.pow(gamma, timestep) * calculateReward(view, f);
     	}
     	return totalReward;
     }
@@ -517,6 +1323,21 @@ public class RLAgent extends Agent {
     	return average;
     }
 
+    /**
+     * calcQValue on the SEPIA views, for callers written against them.
+     * @param sv Current state of the game
+     * @param hv History of the game up until this point
+     * @param attackerId Your footman. The one doing the attacking.
+     * @param defenderId An enemy footman that your footman would be attacking
+     * @return The approximate Q-value
+     */
+    public double calcQValue(State.StateView sv,
+                             History.HistoryView hv,
+                             int attackerId,
+                             int defenderId) {
+    	return calcQValue(new SepiaBattleView(sv, hv), attackerId, defenderId);
+    }
+
     /**
      * Calculate the Q-Value for a given state action pair. The state in this scenario is the current
      * state view and the history of this episode. The action is the attacker and the enemy pair for the
@@ -525,26 +1346,78 @@ public class RLAgent extends Agent {
      * This returns the Q-value according to your feature approximation. This is where you will calculate
      * your features and multiply them by your current weights to get the approximate Q-value.
      *
-     * @param sv Current SEPIA state
-     * @param hv Episode history up to this point in the game
+     * @param view Current state and episode history
      * @param attackerId Your footman. The one doing the attacking.
      * @param defenderId An enemy footman that your footman would be attacking
      * @return The approximate Q-value
      */
-    public double calcQValue(State.StateView sv,
-                             History.HistoryView hv,
+    public double calcQValue(BattleView view,
                              int attackerId,
                              int defenderId) {
-    	double QSum = 0;
+    	return calcQValue(view, attackerId, defenderId, weights);
+    }
+    
+    /**
+     * calcQValue against an explicit set of weights. Only the features of the chosen action are recorded, by
+     * the decision loops, so this can be called from several threads at once.
+     */
+    private double calcQValue(BattleView view, int attackerId, int defenderId, Double[] w) {
+    	//The key and the features come from the same fields, so a miss does not read the view again
+    	PairFields pair = readPair(view, attackerId, defenderId, pairFields.get());
+    	if(tabularCache != null) {
+    		double tableQ = tabularCache.get(packKey(pair));
+    		if(!Double.isNaN(tableQ)) {
+    			return tableQ;
+    		}
+    	}
     	
-    	Double[] featureVector = calculateFeatureVector(sv, hv, attackerId, defenderId);
-    	if(featureVector.length != weights.length) {
-    		System.err.println(String.format("Error: Different sizes of weights: %i and feature vector: %i",weights.length, featureVector.length));
+    	double[] featureVector = featureScratch.get();
+    	fillFeatures(pair, featureVector, 0);
+    	if(mlp == null && featureVector.length != w.length) {
+    		System.err.println(String.format("Error: Different sizes of weights: %i and feature vector: %i",w.length, featureVector.length));
     	}
-    	for(int i = 0; i < featureVector.length; i++) {
-    		QSum += weights[i] * featureVector[i];
+    	return qValueOf(featureVector, w);
+    }
+    
+    /**
+     * Q-value of an already computed feature vector, from the network if it is on and the weights otherwise
+     */
+    private double qValueOf(double[] features, Double[] w) {
+    	if(mlp != null) {
+    		return mlp.evaluate(features);
+    	}
+    	return dot(features, 0, w);
+    }
+    
+    /**
+     * Linear Q-value of the feature vector starting at offset
+     */
+    private static double dot(double[] features, int offset, Double[] w) {
+    	double QSum = 0;
+    	for(int i = 0; i < w.length; i++) {
+    		QSum += w[i] * features[offset + i];
     	}
-        return QSum;
+    	return QSum;
+    }
+
+    /**
+     * calculateFeatureVector on the SEPIA views, for callers written against them.
+     * @param sv Current state of the game
+     * @param hv History of the game up until this point
+     * @param attackerId Your footman. The one doing the attacking.
+     * @param defenderId An enemy footman. The one you are considering attacking.
+     * @return A copy of the feature vector
+     */
+    public Double[] calculateFeatureVector(State.StateView sv,
+                                           History.HistoryView hv,
+                                           int attackerId,
+                                           int defenderId) {
+    	double[] features = calculateFeatureVector(new SepiaBattleView(sv, hv), attackerId, defenderId);
+    	Double[] boxed = new Double[features.length];
+    	for(int i = 0; i < features.length; i++) {
+    		boxed[i] = features[i];
+    	}
+    	return boxed;
     }
 
     /**
@@ -558,44 +1431,168 @@ public class RLAgent extends Agent {
      * from 0 in the Q-function. The other features are up to you. Many are suggested in the assignment
      * description.
      *
-     * @param stateView Current state of the SEPIA game
-     * @param hv History of the game up until this turn
+     * @param view Current state and history of the game
      * @param attackerId Your footman. The one doing the attacking.
      * @param defenderId An enemy footman. The one you are considering attacking.
-     * @return The array of feature function outputs.
+     * @return The array of feature function outputs. It is the footman's entry in prevFeatures, which is
+     *         overwritten in place the next time its features are recorded
      */
-    public Double[] calculateFeatureVector(State.StateView sv,
-                                           History.HistoryView hv,
+    public double[] calculateFeatureVector(BattleView view,
                                            int attackerId,
                                            int defenderId) {
+    	double[] featureVector = prevFeatures.get(attackerId);
+    	if(featureVector == null) {
+    		featureVector = new double[NUM_FEATURES];
+    		prevFeatures.put(attackerId, featureVector);
+    	}
+    	fillFeatures(readPair(view, attackerId, defenderId, pairFields.get()), featureVector, 0);
+        return featureVector;
+    }
+    
+    /**
+     * Snapshot of the enemies for the current turn, rebuilt if it is from another turn or episode. The
+     * decision loops build it up front, since the rebuild must not run on several threads at once.
+     */
+    private EnemySnapshot enemies(BattleView view) {
+    	if(enemySnapshot.turn != view.getTurnNumber() || enemySnapshot.episode != totalEp) {
+    		snapshotEnemies(view);
+    	}
+    	return enemySnapshot;
+    }
+    
+    /**
+     * Reads the fields of every enemy in enemyFootmen, and counts my living footmen on each target in one pass
+     * over their current commands. This turn's commands are not in the history until the turn is over, so
+     * lastCommands is what the footmen are doing.
+     * @param view
+     */
+    private void snapshotEnemies(BattleView view) {
+    	EnemySnapshot enemies = enemySnapshot;
+    	HashMap<Integer, Integer> attackers = enemies.attackers;
+    	attackers.clear();
+    	for(Integer f : myFootmen) {
+    		TargetedAction action = (TargetedAction) lastCommands.get(f);
+    		if(action != null) {
+    			attackers.merge(action.getTargetId(), 1, Integer::sum);
+    		}
+    	}
+    	enemies.resize(enemyFootmen.size());
+    	int e = 0;
+    	for(int enemy : enemyFootmen) {
+    		Footman footman = new Footman(enemy, view);
+    		enemies.ids[e] = enemy;
+    		enemies.x[e] = footman.x;
+    		enemies.y[e] = footman.y;
+    		enemies.hp[e] = footman.hp;
+    		enemies.lastTarget[e] = footman.lastTarget;
+    		enemies.attackersOn[e] = attackers.getOrDefault(enemy, 0);
+    		e++;
+    	}
+    	enemies.turn = view.getTurnNumber();
+    	enemies.episode = totalEp;
+    }
+    
+    /**
+     * Reads everything the features and the tabular key need about a pair
+     * @param pair Where to put the fields
+     * @return pair
+     */
+    private PairFields readPair(BattleView view, int attackerId, int defenderId, PairFields pair) {
+    	readAttacker(view, attackerId, pair);
+    	EnemySnapshot enemies = enemies(view);
+    	int e = enemies.indexOf(defenderId);
+    	if(e >= 0) {
+    		return readEnemy(enemies, e, pair);
+    	}
+    	//Not a living enemy, e.g. a random pick from explore. Read it from the view
+    	Footman defender = new Footman(defenderId, view);
+    	pair.distance = Math.max(Math.abs(pair.attackerX - defender.x), Math.abs(pair.attackerY - defender.y));
+    	pair.defenderHp = defender.hp;
+    	pair.attackersOn = enemies.attackers.getOrDefault(defenderId, 0);
+    	pair.defenderAttacking = defender.lastTarget == attackerId;
+    	return pair;
+    }
+    
+    /**
+     * Reads the attacker's half of a pair. A dead attacker has no position and 0 HP, like in Footman.
+     * @return pair
+     */
+    private static PairFields readAttacker(BattleView view, int attackerId, PairFields pair) {
+    	pair.attackerId = attackerId;
+    	if(view.hasUnit(attackerId)) {
+    		pair.attackerX = view.getX(attackerId);
+    		pair.attackerY = view.getY(attackerId);
+    		pair.attackerHp = view.getHP(attackerId);
+    	} else {
+    		pair.attackerX = 0;
+    		pair.attackerY = 0;
+    		pair.attackerHp = 0;
+    	}
+    	return pair;
+    }
+    
+    /**
+     * Fills in the defender's half of a pair from the snapshot. The attacker must already be read.
+     * @param e Index of the defender in the snapshot
+     * @return pair
+     */
+    private static PairFields readEnemy(EnemySnapshot enemies, int e, PairFields pair) {
+    	pair.distance = Math.max(Math.abs(pair.attackerX - enemies.x[e]), Math.abs(pair.attackerY - enemies.y[e]));
+    	pair.defenderHp = enemies.hp[e];
+    	pair.attackersOn = enemies.attackersOn[e];
+    	pair.defenderAttacking = enemies.lastTarget[e] == pair.attackerId;
+    	return pair;
+    }
+    
+    /**
+     * Writes the features of a pair into a primitive buffer
+     * @param out Buffer to write to
+     * @param offset Index of the first feature
+     */
+    private static void fillFeatures(PairFields pair, double[] out, int offset) {
     	//First value constant
     	double constant = 1.0;
     	
     	//Calculate distance away
-    	Footman attacker = new Footman(attackerId, sv, hv);
-    	Footman defender = new Footman(defenderId, sv, hv);
-    	double chebyshevDistAway = attacker.chebyshevDistFrom(defender);
+    	double chebyshevDistAway = pair.distance;
     	
     	//Health difference
-    	double hpDiff = attacker.hp - defender.hp; 
+    	double hpDiff = pair.attackerHp - pair.defenderHp; 
     	
     	//Calculate the number of other footmen attacking that same target
-    	double otherAttackers = 0;
-    	for(Map.Entry<Integer, Action> entry : hv.getCommandsIssued(playernum, sv.getTurnNumber()).entrySet()) {
-    		TargetedAction action = (TargetedAction) entry.getValue();
-    		if(myFootmen.contains(action.getUnitId()) && action.getTargetId() == defenderId) {
-    			otherAttackers++;
-    		}
-    	}
+    	double otherAttackers = pair.attackersOn;
     	
     	//Is defender attacking me? -1 if yes and 1 if no
-    	double defenderAttacking = (defender.lastTarget == attackerId) ? -1 : 1;
+    	double defenderAttacking = pair.defenderAttacking ? -1 : 1;
     	
-    	Double[] featureVector = new Double[]{constant, chebyshevDistAway, hpDiff, otherAttackers, defenderAttacking};
-    	
-    	prevFeatures.put(attackerId, featureVector);
-    	
-        return featureVector;
+    	out[offset] = constant;
+    	out[offset + 1] = chebyshevDistAway;
+    	out[offset + 2] = hpDiff;
+    	out[offset + 3] = otherAttackers;
+    	out[offset + 4] = defenderAttacking;
+    }
+    
+    /**
+     * Discretizes an (attacker, defender) pair into a packed key for the tabular cache. Each field gets 4 bits:
+     * distance band (doubling widths), attacker HP bucket, defender HP bucket, attackers already on the target,
+     * and one bit for whether the defender is attacking this footman.
+     * @param view
+     * @param attackerId
+     * @param defenderId
+     * @return The packed key, always non-negative
+     */
+    public long stateKey(BattleView view, int attackerId, int defenderId) {
+    	return packKey(readPair(view, attackerId, defenderId, pairFields.get()));
+    }
+    
+    private static long packKey(PairFields pair) {
+    	//Bit length of the distance: 1 when adjacent, 2 for 2-3, 3 for 4-7 and so on
+    	long distBand = Math.min(MAX_BUCKET, 32 - Integer.numberOfLeadingZeros(pair.distance));
+    	long attackerHp = Math.min(MAX_BUCKET, pair.attackerHp / HP_BUCKET);
+    	long defenderHp = Math.min(MAX_BUCKET, pair.defenderHp / HP_BUCKET);
+    	long onTarget = Math.min(MAX_BUCKET, pair.attackersOn);
+    	long defenderAttacking = pair.defenderAttacking ? 1 : 0;
+    	return distBand | (attackerHp << 4) | (defenderHp << 8) | (onTarget << 12) | (defenderAttacking << 16);
     }
 
     /**
@@ -685,13 +1682,393 @@ public class RLAgent extends Agent {
         return null;
     }
 
+    /**
+     * Where terminalStep checkpoints the learner state. Read back in the constructor when loading weights.
+     */
+    public static final File CHECKPOINT_FILE = new File("agent_weights/learner_state.bin");
+    
+    /**
+     * Checkpoint layout: magic, version, then records of (short tag, int length, payload) ending with
+     * TAG_END. Readers skip tags they do not know and keep the defaults for tags that are missing, so
+     * fields can be added without breaking old checkpoints. Bump the version only for incompatible changes.
+     */
+    public static final int CHECKPOINT_MAGIC = 0x524C4147;
+    public static final short CHECKPOINT_VERSION = 1;
+    private static final short TAG_END = 0;
+    private static final short TAG_COUNTERS = 1;
+    private static final short TAG_WEIGHTS = 2;
+    private static final short TAG_AVERAGE_REWARDS = 3;
+    private static final short TAG_CUMULATIVE_REWARDS = 4;
+    private static final short TAG_RANDOM = 5;
+    private static final short TAG_PREV_FEATURES = 6;
+    private static final short TAG_PREV_KEYS = 7;
+    //8 held the ids of deferred footmen without their rewards, it is skipped like an unknown tag now
+    private static final short TAG_TABULAR = 9;
+    private static final short TAG_MLP = 10;
+    private static final short TAG_PENDING = 11;
+    //The random number generator is the only object in the checkpoint
+    private static final ObjectInputFilter RANDOM_ONLY = ObjectInputFilter.Config.createFilter("java.util.Random;!*");
+
+    /**
+     * Writes the learner state to a temporary file, syncs it and only then moves it over CHECKPOINT_FILE in
+     * one atomic step. If anything fails on the way the previous checkpoint is left untouched.
+     */
+    private void writeCheckpoint() {
+    	File tmp = new File(CHECKPOINT_FILE.getPath() + ".tmp");
+    	//saveWeights is skipped while the network is on, so the directory may not exist yet
+    	tmp.getAbsoluteFile().getParentFile().mkdirs();
+    	try {
+    		try (FileOutputStream out = new FileOutputStream(tmp)) {
+    			writePlayerData(out);
+    			out.getFD().sync();
+    		}
+    		Files.move(tmp.toPath(), CHECKPOINT_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    	} catch(IOException ex) {
+    		System.err.println("Failed to write learner state, keeping the last checkpoint. Reason: " + ex.getMessage());
+    		tmp.delete();
+    	}
+    }
+
+    /**
+     * Writes the complete learner state: episode counters, weights, evaluation results, the random number
+     * generator and the per footman state used by the next update. The stream is flushed but not closed.
+     */
     @Override
     public void savePlayerData(OutputStream outputStream) {
-   
+    	try {
+    		writePlayerData(outputStream);
+    	} catch(IOException ex) {
+    		System.err.println("Failed to save player data. Reason: " + ex.getMessage());
+    	}
+    }
+    
+    private void writePlayerData(OutputStream outputStream) throws IOException {
+    	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+    	//Each record is staged here so its length can be written before it
+    	ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    	DataOutputStream record = new DataOutputStream(buffer);
+    	out.writeInt(CHECKPOINT_MAGIC);
+    	out.writeShort(CHECKPOINT_VERSION);
+    	
+    	record.writeInt(currEpisode);
+    	record.writeInt(totalEp);
+    	record.writeInt(currEvalEps);
+    	record.writeBoolean(isLearning);
+    	record.writeInt(timestep);
+    	writeRecord(out, TAG_COUNTERS, buffer);
+    	
+    	writeDoubles(record, weights);
+    	writeRecord(out, TAG_WEIGHTS, buffer);
+    	
+    	writeDoubles(record, averageRewards.toArray(new Double[averageRewards.size()]));
+    	writeRecord(out, TAG_AVERAGE_REWARDS, buffer);
+    	
+    	writeDoubles(record, cumulativeRewards);
+    	writeRecord(out, TAG_CUMULATIVE_REWARDS, buffer);
+    	
+    	ObjectOutputStream rng = new ObjectOutputStream(record);
+    	rng.writeObject(random);
+    	rng.flush();
+    	writeRecord(out, TAG_RANDOM, buffer);
+    	
+    	record.writeInt(prevFeatures.size());
+    	for(Map.Entry<Integer, double[]> entry : prevFeatures.entrySet()) {
+    		record.writeInt(entry.getKey());
+    		writeDoubles(record, entry.getValue());
+    	}
+    	writeRecord(out, TAG_PREV_FEATURES, buffer);
+    	
+    	record.writeInt(prevKeys.size());
+    	for(Map.Entry<Integer, Long> entry : prevKeys.entrySet()) {
+    		record.writeInt(entry.getKey());
+    		record.writeLong(entry.getValue());
+    	}
+    	writeRecord(out, TAG_PREV_KEYS, buffer);
+    	
+    	record.writeInt(deferredUpdates.size());
+    	for(Map.Entry<Integer, List<PendingUpdate>> entry : deferredUpdates.entrySet()) {
+    		record.writeInt(entry.getKey());
+    		record.writeInt(entry.getValue().size());
+    		for(PendingUpdate update : entry.getValue()) {
+    			writeDoubles(record, update.features);
+    			record.writeBoolean(update.key != null);
+    			record.writeLong(update.key != null ? update.key : 0L);
+    			record.writeDouble(update.reward);
+    			record.writeDouble(update.discount);
+    		}
+    	}
+    	writeRecord(out, TAG_PENDING, buffer);
+    	
+    	if(tabularCache != null) {
+    		final DataOutputStream table = record;
+    		table.writeInt(tabularCache.size());
+    		tabularCache.forEach(new TabularQCache.EntryVisitor() {
+    			@Override
+    			public void visit(long key, double value) throws IOException {
+    				table.writeLong(key);
+    				table.writeDouble(value);
+    			}
+    		});
+    		writeRecord(out, TAG_TABULAR, buffer);
+    	}
+    	
+    	if(mlp != null) {
+    		record.writeInt(mlp.hidden);
+    		double[] params = mlp.getParameters();
+    		record.writeInt(params.length);
+    		for(double param : params) {
+    			record.writeDouble(param);
+    		}
+    		writeRecord(out, TAG_MLP, buffer);
+    	}
+    	
+    	out.writeShort(TAG_END);
+    	out.flush();
     }
 
+    /**
+     * Restores what savePlayerData wrote. Anything missing from the stream keeps its current value.
+     */
     @Override
     public void loadPlayerData(InputStream inputStream) {
-
+    	try {
+    		readPlayerData(inputStream);
+    	} catch(IOException | RuntimeException ex) {
+    		System.err.println("Failed to load player data. Reason: " + ex.getMessage());
+    	}
+    }
+    
+    /**
+     * Decodes the whole checkpoint into locals first and only touches the agent once TAG_END has been read,
+     * so a truncated or corrupt checkpoint leaves the learner exactly as it was. Every count is checked
+     * against the bytes left in its record before anything is allocated for it, and the random number
+     * generator is the only class that may be deserialized.
+     * @throws IOException if the stream is not a complete checkpoint of a version this agent can read
+     */
+    private void readPlayerData(InputStream inputStream) throws IOException {
+    	DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+    	if(in.readInt() != CHECKPOINT_MAGIC) {
+    		throw new IOException("Not a learner state checkpoint");
+    	}
+    	short version = in.readShort();
+    	if(version > CHECKPOINT_VERSION) {
+    		throw new IOException("Unsupported checkpoint version " + version);
+    	}
+    	
+    	DataInputStream counters = null;
+    	Double[] savedWeights = null, savedAverages = null, savedCumulative = null;
+    	Random savedRandom = null;
+    	HashMap<Integer, double[]> savedFeatures = null;
+    	HashMap<Integer, Long> savedKeys = null;
+    	LinkedHashMap<Integer, List<PendingUpdate>> savedDeferred = null;
+    	long[] tableKeys = null;
+    	double[] tableValues = null;
+    	double[] mlpParams = null;
+    	int mlpHidden = 0;
+    	
+    	int savedEpisode = 0, savedTotal = 0, savedEvalEps = 0, savedTimestep = 0;
+    	boolean savedLearning = false;
+    	
+    	try {
+    		short tag;
+    		while((tag = in.readShort()) != TAG_END) {
+    			int length = in.readInt();
+    			if(length < 0) {
+    				throw new IOException("Corrupt record length " + length);
+    			}
+    			//Grows with the data actually read, so a bogus length cannot allocate more than the file holds
+    			byte[] payload = in.readNBytes(length);
+    			if(payload.length < length) {
+    				throw new EOFException();
+    			}
+    			DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+    			switch(tag) {
+    			case TAG_COUNTERS:
+    				counters = record;
+    				break;
+    			case TAG_WEIGHTS:
+    				savedWeights = readDoubles(record);
+    				if(savedWeights.length != NUM_FEATURES) {
+    					throw new IOException("Checkpoint has " + savedWeights.length + " weights");
+    				}
+    				break;
+    			case TAG_AVERAGE_REWARDS:
+    				savedAverages = readDoubles(record);
+    				break;
+    			case TAG_CUMULATIVE_REWARDS:
+    				savedCumulative = readDoubles(record);
+    				break;
+    			case TAG_RANDOM:
+    				try {
+    					ObjectInputStream rng = new ObjectInputStream(record);
+    					rng.setObjectInputFilter(RANDOM_ONLY);
+    					savedRandom = (Random) rng.readObject();
+    				} catch(ClassNotFoundException | IOException | RuntimeException ex) {
+    					//Serialization errors often have no message of their own
+    					throw new IOException("Cannot restore random number generator: " + ex);
+    				}
+    				break;
+    			case TAG_PREV_FEATURES:
+    				savedFeatures = new HashMap<>();
+    				for(int n = readCount(record, 8); n > 0; n--) {
+    					int id = record.readInt();
+    					savedFeatures.put(id, readDoubleArray(record));
+    				}
+    				break;
+    			case TAG_PREV_KEYS:
+    				savedKeys = new HashMap<>();
+    				for(int n = readCount(record, 12); n > 0; n--) {
+    					int id = record.readInt();
+    					savedKeys.put(id, record.readLong());
+    				}
+    				break;
+    			case TAG_PENDING:
+    				savedDeferred = new LinkedHashMap<>();
+    				for(int n = readCount(record, 8); n > 0; n--) {
+    					int id = record.readInt();
+    					List<PendingUpdate> pending = new ArrayList<>();
+    					//Features length, key flag, key, reward and discount
+    					for(int m = readCount(record, 29); m > 0; m--) {
+    						double[] features = readDoubleArray(record);
+    						boolean hasKey = record.readBoolean();
+    						long key = record.readLong();
+    						PendingUpdate update = new PendingUpdate(features, hasKey ? key : null);
+    						update.reward = record.readDouble();
+    						update.discount = record.readDouble();
+    						pending.add(update);
+    					}
+    					savedDeferred.put(id, pending);
+    				}
+    				break;
+    			case TAG_TABULAR:
+    				tableKeys = new long[readCount(record, 16)];
+    				tableValues = new double[tableKeys.length];
+    				for(int i = 0; i < tableKeys.length; i++) {
+    					tableKeys[i] = record.readLong();
+    					tableValues[i] = record.readDouble();
+    				}
+    				break;
+    			case TAG_MLP:
+    				mlpHidden = record.readInt();
+    				mlpParams = new double[readCount(record, 8)];
+    				for(int i = 0; i < mlpParams.length; i++) {
+    					mlpParams[i] = record.readDouble();
+    				}
+    				break;
+    			default:
+    				//Written by a newer version, skip it
+    				break;
+    			}
+    		}
+    		if(counters != null) {
+    			savedEpisode = counters.readInt();
+    			savedTotal = counters.readInt();
+    			savedEvalEps = counters.readInt();
+    			savedLearning = counters.readBoolean();
+    			savedTimestep = counters.readInt();
+    		}
+    	} catch(EOFException ex) {
+    		//Ran out of data before TAG_END, or a record is shorter than its contents
+    		throw new IOException("Checkpoint is truncated");
+    	}
+    	
+    	//Everything has been read, nothing below can fail
+    	if(counters != null) {
+    		currEpisode = savedEpisode;
+    		totalEp = savedTotal;
+    		currEvalEps = savedEvalEps;
+    		isLearning = savedLearning;
+    		timestep = savedTimestep;
+    	}
+    	if(savedWeights != null) {
+    		weights = savedWeights;
+    	}
+    	if(savedAverages != null) {
+    		averageRewards = new LinkedList<>(Arrays.asList(savedAverages));
+    	}
+    	if(savedCumulative != null) {
+    		//The evaluation block size may have changed since the checkpoint was written
+    		for(int i = 0; i < cumulativeRewards.length; i++) {
+    			cumulativeRewards[i] = i < savedCumulative.length ? savedCumulative[i] : 0.0;
+    		}
+    	}
+    	if(savedRandom != null) {
+    		random = savedRandom;
+    	}
+    	if(savedFeatures != null) {
+    		prevFeatures = savedFeatures;
+    	}
+    	if(savedKeys != null) {
+    		prevKeys = savedKeys;
+    	}
+    	if(savedDeferred != null) {
+    		deferredUpdates = savedDeferred;
+    	}
+    	if(tableKeys != null && tabularCache != null) {
+    		for(int i = 0; i < tableKeys.length; i++) {
+    			tabularCache.put(tableKeys[i], tableValues[i]);
+    		}
+    	}
+    	if(mlpParams != null && mlp != null) {
+    		if(mlpHidden == mlp.hidden && mlpParams.length == mlp.getParameters().length) {
+    			mlp.setParameters(mlpParams);
+    		} else {
+    			System.err.println("Not restoring the Q-network. Checkpoint has " + mlpHidden + " hidden units");
+    		}
+    	}
+    }
+    
+    /**
+     * Writes the staged record with its tag and length and resets the buffer for the next one.
+     */
+    private static void writeRecord(DataOutputStream out, short tag, ByteArrayOutputStream buffer) throws IOException {
+    	out.writeShort(tag);
+    	out.writeInt(buffer.size());
+    	buffer.writeTo(out);
+    	buffer.reset();
+    }
+    
+    private static void writeDoubles(DataOutputStream out, Double[] values) throws IOException {
+    	out.writeInt(values.length);
+    	for(Double value : values) {
+    		out.writeDouble(value != null ? value : 0.0);
+    	}
+    }
+    
+    private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+    	out.writeInt(values.length);
+    	for(double value : values) {
+    		out.writeDouble(value);
+    	}
+    }
+    
+    /**
+     * Reads an element count and checks that the rest of the record can hold that many elements
+     * @param record Stream over one record's payload
+     * @param minBytes Smallest number of bytes one element takes
+     * @throws IOException if the count is negative or too large for the record
+     */
+    private static int readCount(DataInputStream record, int minBytes) throws IOException {
+    	int count = record.readInt();
+    	if(count < 0 || count > record.available() / minBytes) {
+    		throw new IOException("Corrupt element count " + count);
+    	}
+    	return count;
+    }
+    
+    private static double[] readDoubleArray(DataInputStream in) throws IOException {
+    	double[] values = new double[readCount(in, 8)];
+    	for(int i = 0; i < values.length; i++) {
+    		values[i] = in.readDouble();
+    	}
+    	return values;
+    }
+    
+    private static Double[] readDoubles(DataInputStream in) throws IOException {
+    	Double[] values = new Double[readCount(in, 8)];
+    	for(int i = 0; i < values.length; i++) {
+    		values[i] = in.readDouble();
+    	}
+    	return values;
     }
 }
@@ -0,0 +1,378 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.TargetedAction;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Monte Carlo rollouts for target selection. At a decision point the battle is copied into a small in-memory
+ * combat model and K short rollouts are played for every candidate target, in parallel. RLAgent blends the
+ * average discounted return of those rollouts with its Q-value.
+ *
+ * The combat model only knows HP, positions and targets. Units walk one step towards their target per turn
+ * and hit it for the average damage seen in the damage logs once adjacent. When a target dies the unit picks
+ * a new one, either the nearest enemy (greedy) or a random one. Rewards follow RLAgent.calculateReward.
+ *
+ * The rollouts of a decision are split into at most LEAVES_PER_THREAD leaves per pool thread, each playing a
+ * chunk of candidates on its own state buffer with an inline random generator. Once the buffers have grown,
+ * a decision only allocates its task objects, and their number does not depend on the number of units.
+ * Decisions must come from one thread at a time.
+ */
+public class RolloutPlanner {
+
+    /**
+     * Damage assumed per hit until a hit has been seen for that side.
+     */
+    public static final double DEFAULT_DAMAGE = 6.0;
+
+    /**
+     * Leaves per pool thread. More than one so a leaf of slow rollouts does not hold up the others.
+     */
+    public static final int LEAVES_PER_THREAD = 4;
+
+    public final int rolloutsPerTarget;
+    public final int depth;
+    public final long budgetNanos;
+    public final double gamma;
+    public final boolean greedy;
+    private final long seed;
+    private final ForkJoinPool pool;
+
+    //Running average damage per hit for my side (0) and the enemy (1)
+    private final double[] damageSum = new double[2];
+    private final long[] damageHits = new long[2];
+
+    private final CombatState root = new CombatState(16);
+    //Index in root by unit id, -1 for units that are not in it
+    private int[] rootIndex = new int[0];
+    //One state buffer per leaf
+    private CombatState[] leafStates = new CombatState[0];
+    private int rootTurn = -1;
+
+    //The decision being evaluated. Written before the tasks are invoked and only read by them
+    private int attacker;
+    private int[] targets = new int[0];
+    private int numCandidates;
+    private int leaves;
+    private double[] returns;
+    private long deadline;
+
+    /**
+     * @param rolloutsPerTarget K, the number of rollouts per candidate target
+     * @param depth Maximum number of simulated turns per rollout
+     * @param budgetNanos Time budget for one decision. Rollouts that have not finished by then are dropped. The
+     *                    caller can lower it further for a single decision, see evaluate
+     * @param gamma Discount factor for rollout rewards
+     * @param greedy Retarget to the nearest enemy if true, to a random enemy otherwise
+     * @param seed Base seed for the rollout random numbers
+     * @param pool Pool to run the rollouts on
+     */
+    public RolloutPlanner(int rolloutsPerTarget, int depth, long budgetNanos, double gamma, boolean greedy, long seed, ForkJoinPool pool) {
+        this.rolloutsPerTarget = rolloutsPerTarget;
+        this.depth = depth;
+        this.budgetNanos = budgetNanos;
+        this.gamma = gamma;
+        this.greedy = greedy;
+        this.seed = seed;
+        this.pool = pool;
+    }
+
+    /**
+     * Forgets the root state of the last episode. Turn numbers start over, so a root left over from the same
+     * turn number of the previous episode would otherwise be reused.
+     */
+    public void beginEpisode() {
+        rootTurn = -1;
+    }
+
+    /**
+     * Adds hits to the damage model. Should be given the hits of every turn, not only the turns with a decision.
+     *
+     * @param damage Hits landed since the last call
+     * @param playernum My player number
+     */
+    public void observeDamage(List<BattleView.Damage> damage, int playernum) {
+        for(BattleView.Damage hit : damage) {
+            int side = hit.attackerPlayer == playernum ? 0 : 1;
+            damageSum[side] += hit.amount;
+            damageHits[side]++;
+        }
+    }
+
+    /**
+     * Rebuilds the root state. Only does work on the first call of a turn.
+     *
+     * @param view Current state of the battle
+     * @param myFootmen My living footmen
+     * @param enemyFootmen Living enemy footmen
+     * @param lastCommands Last command given to each of my footmen
+     * @param enemyTargets Footman each enemy is attacking, as far as is known
+     */
+    public void beginTurn(BattleView view, List<Integer> myFootmen, List<Integer> enemyFootmen,
+                          Map<Integer, Action> lastCommands, Map<Integer, Integer> enemyTargets) {
+        if(rootTurn == view.getTurnNumber()) {
+            return;
+        }
+        rootTurn = view.getTurnNumber();
+
+        for(int i = 0; i < root.size; i++) {
+            rootIndex[root.id[i]] = -1;
+        }
+        root.clear(myFootmen.size() + enemyFootmen.size());
+        for(Integer id : myFootmen) {
+            add(id, view, 0);
+        }
+        for(Integer id : enemyFootmen) {
+            add(id, view, 1);
+        }
+        //Resolve targets from the last known commands. Units without one start targetless and retarget
+        for(int i = 0; i < root.size; i++) {
+            Action action = lastCommands.get(root.id[i]);
+            Integer enemyTarget = enemyTargets.get(root.id[i]);
+            if(action instanceof TargetedAction) {
+                root.target[i] = indexOf(((TargetedAction) action).getTargetId());
+            } else {
+                root.target[i] = enemyTarget != null ? indexOf(enemyTarget) : -1;
+            }
+        }
+    }
+
+    private void add(int unitId, BattleView view, int side) {
+        if(view.hasUnit(unitId)) {
+            if(unitId >= rootIndex.length) {
+                int length = rootIndex.length;
+                rootIndex = Arrays.copyOf(rootIndex, Math.max(unitId + 1, length * 2));
+                Arrays.fill(rootIndex, length, rootIndex.length, -1);
+            }
+            rootIndex[unitId] = root.size;
+            root.add(unitId, view.getX(unitId), view.getY(unitId), view.getHP(unitId), side);
+        }
+    }
+
+    private int indexOf(int unitId) {
+        return unitId >= 0 && unitId < rootIndex.length ? rootIndex[unitId] : -1;
+    }
+
+    /**
+     * Runs the rollouts for one attacker against every candidate.
+     *
+     * @param attackerId The footman making the decision
+     * @param candidates Enemy footmen it may attack, in the first numCandidates slots
+     * @param numCandidates Number of candidates
+     * @param returns Filled with the average rollout return per candidate, or NaN if no rollout finished in time
+     * @param remainingNanos Time the caller has left. The rollouts stop at the earlier of this and budgetNanos
+     */
+    public void evaluate(int attackerId, int[] candidates, int numCandidates, double[] returns, long remainingNanos) {
+        attacker = indexOf(attackerId);
+        if(attacker < 0) {
+            Arrays.fill(returns, 0, numCandidates, Double.NaN);
+            return;
+        }
+        if(targets.length < numCandidates) {
+            targets = new int[Math.max(numCandidates, targets.length * 2)];
+        }
+        for(int c = 0; c < numCandidates; c++) {
+            targets[c] = indexOf(candidates[c]);
+        }
+        this.numCandidates = numCandidates;
+        this.returns = returns;
+        deadline = System.nanoTime() + Math.min(budgetNanos, remainingNanos);
+        //With one thread there is nothing to split, so the caller plays every candidate itself
+        leaves = pool.getParallelism() == 1 ? 1 : Math.min(numCandidates, pool.getParallelism() * LEAVES_PER_THREAD);
+        if(leafStates.length < leaves) {
+            leafStates = Arrays.copyOf(leafStates, leaves);
+        }
+        if(leaves == 1) {
+            new RolloutTask(0, 1).compute();
+        } else if(leaves > 1) {
+            pool.invoke(new RolloutTask(0, leaves));
+        }
+        this.returns = null;
+    }
+
+    /**
+     * Splits the leaves of one decision across the pool. Leaf l plays the candidates from l * N / leaves up to
+     * (l + 1) * N / leaves, K rollouts each. Rollout k of candidate c is seeded with c * K + k.
+     */
+    private class RolloutTask extends RecursiveAction {
+        final int from, to;
+
+        RolloutTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RolloutTask(from, mid), new RolloutTask(mid, to));
+                return;
+            }
+            CombatState state = leafStates[from];
+            if(state == null) {
+                state = new CombatState(root.size);
+                leafStates[from] = state;
+            }
+            long base = seed ^ ((long) rootTurn << 40) ^ ((long) root.id[attacker] << 20);
+            for(int c = from * numCandidates / leaves; c < (from + 1) * numCandidates / leaves; c++) {
+                double sum = 0;
+                int count = 0;
+                for(int k = 0; k < rolloutsPerTarget && System.nanoTime() - deadline < 0; k++) {
+                    state.copyFrom(root);
+                    double result = rollout(state, attacker, targets[c], base ^ (c * rolloutsPerTarget + k));
+                    if(!Double.isNaN(result)) {
+                        sum += result;
+                        count++;
+                    }
+                }
+                returns[c] = count > 0 ? sum / count : Double.NaN;
+            }
+        }
+    }
+
+    /**
+     * Plays one rollout on a private copy of the root state.
+     *
+     * @return Discounted return for the attacker, or NaN if the deadline passed before it finished
+     */
+    private double rollout(CombatState s, int attacker, int firstTarget, long rng) {
+        double myDamage = damageHits[0] > 0 ? damageSum[0] / damageHits[0] : DEFAULT_DAMAGE;
+        double enemyDamage = damageHits[1] > 0 ? damageSum[1] / damageHits[1] : DEFAULT_DAMAGE;
+        s.target[attacker] = firstTarget;
+
+        double total = 0;
+        double discount = 1;
+        for(int t = 0; t < depth; t++) {
+            double reward = 0;
+            for(int i = 0; i < s.size; i++) {
+                if(s.hp[i] <= 0) {
+                    continue;
+                }
+                int target = s.target[i];
+                if(target < 0 || s.hp[target] <= 0) {
+                    rng = nextSeed(rng);
+                    target = s.pickTarget(i, greedy, rng);
+                    s.target[i] = target;
+                    if(target < 0) {
+                        //One side has been wiped out
+                        return total;
+                    }
+                }
+                if(Math.max(Math.abs(s.x[i] - s.x[target]), Math.abs(s.y[i] - s.y[target])) <= 1) {
+                    double hit = s.team[i] == 0 ? myDamage : enemyDamage;
+                    s.hp[target] -= hit;
+                    if(i == attacker) {
+                        reward += hit;
+                        if(s.hp[target] <= 0) {
+                            reward += 30;
+                        }
+                    } else if(target == attacker) {
+                        reward -= hit;
+                    }
+                } else {
+                    s.x[i] += Integer.signum(s.x[target] - s.x[i]);
+                    s.y[i] += Integer.signum(s.y[target] - s.y[i]);
+                }
+            }
+            if(s.hp[attacker] <= 0) {
+                return total + discount * -100;
+            }
+            total += discount * reward;
+            discount *= gamma;
+            if(System.nanoTime() - deadline >= 0) {
+                return Double.NaN;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * splitmix64 step. Kept inline so rollouts do not need a Random object.
+     */
+    static long nextSeed(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Flat arrays describing every unit in the combat model. Targets are indices into the same arrays.
+     */
+    static class CombatState {
+        int size;
+        int[] id, x, y, team, target;
+        double[] hp;
+
+        CombatState(int capacity) {
+            ensureCapacity(capacity);
+        }
+
+        void ensureCapacity(int capacity) {
+            if(id != null && id.length >= capacity) {
+                return;
+            }
+            id = new int[capacity];
+            x = new int[capacity];
+            y = new int[capacity];
+            team = new int[capacity];
+            target = new int[capacity];
+            hp = new double[capacity];
+        }
+
+        void clear(int capacity) {
+            ensureCapacity(capacity);
+            size = 0;
+        }
+
+        void add(int unitId, int unitX, int unitY, int unitHp, int side) {
+            id[size] = unitId;
+            x[size] = unitX;
+            y[size] = unitY;
+            hp[size] = unitHp;
+            team[size] = side;
+            target[size] = -1;
+            size++;
+        }
+
+        void copyFrom(CombatState other) {
+            ensureCapacity(other.size);
+            size = other.size;
+            System.arraycopy(other.id, 0, id, 0, size);
+            System.arraycopy(other.x, 0, x, 0, size);
+            System.arraycopy(other.y, 0, y, 0, size);
+            System.arraycopy(other.team, 0, team, 0, size);
+            System.arraycopy(other.target, 0, target, 0, size);
+            System.arraycopy(other.hp, 0, hp, 0, size);
+        }
+
+        /**
+         * @return Index of the nearest living enemy of unit i, or a random one if not greedy. -1 if none are left
+         */
+        int pickTarget(int i, boolean greedy, long rng) {
+            int best = -1;
+            int bestDist = Integer.MAX_VALUE;
+            int alive = 0;
+            for(int j = 0; j < size; j++) {
+                if(team[j] == team[i] || hp[j] <= 0) {
+                    continue;
+                }
+                alive++;
+                int dist = Math.max(Math.abs(x[i] - x[j]), Math.abs(y[i] - y[j]));
+                if(greedy ? dist < bestDist : Long.remainderUnsigned(rng, alive) == 0) {
+                    //Reservoir sampling when picking at random
+                    bestDist = dist;
+                    best = j;
+                }
+                rng = nextSeed(rng);
+            }
+            return best;
+        }
+    }
+}
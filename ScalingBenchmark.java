@@ -0,0 +1,150 @@
+package edu.cwru.sepia.agent;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.*;
+
+/**
+ * Measures how RLAgent scales with army size. For each size a scenario is generated, the agent plays a few
+ * episodes of it in process (see InProcessBattle) and one line is printed with:
+ *
+ * - p50 and p99 latency of initialStep/middleStep, terminalStep is not counted
+ * - mean bytes allocated per turn by the agent, summed over all threads so decision and rollout pools count
+ * - episodes per second, including the time of the simulation
+ * - peak heap over the episodes of that size
+ *
+ * Usage: ScalingBenchmark [sizes=5,10,25,50,100,250,500,1000] [episodes=3] [warmup=1] [maxTurns=1000]
+ *        [density=0.1] [seed=1] [agent.name=value ...]
+ *
+ * Options starting with agent. are passed on to RLAgent without the prefix, e.g. agent.decisionThreads=4.
+ * The agent runs with persistState=false, so it does not overwrite agent_weights/ in the working directory and
+ * file writes do not count towards episodes per second. Pass agent.persistState=true to time them as well.
+ */
+public class ScalingBenchmark {
+
+    public static final String AGENT_PREFIX = "agent.";
+
+    private final Map<String, String> options;
+
+    public ScalingBenchmark(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for(String arg : args) {
+            int split = arg.indexOf('=');
+            if(split < 0) {
+                System.err.println("Ignoring argument without a value: " + arg);
+                continue;
+            }
+            options.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+        new ScalingBenchmark(options).run();
+    }
+
+    /**
+     * Latencies and allocations of every agent call of one size.
+     */
+    private static class Samples implements InProcessBattle.TurnObserver {
+        long[] nanos = new long[1024];
+        int count = 0;
+        long allocatedBytes = 0;
+        int allocationSamples = 0;
+
+        @Override
+        public void turnTaken(int turn, long nanos, long allocatedBytes) {
+            if(count == this.nanos.length) {
+                this.nanos = Arrays.copyOf(this.nanos, count * 2);
+            }
+            this.nanos[count++] = nanos;
+            if(allocatedBytes >= 0) {
+                this.allocatedBytes += allocatedBytes;
+                allocationSamples++;
+            }
+        }
+
+        long percentile(double p) {
+            if(count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (int) Math.ceil(p * count) - 1)];
+        }
+    }
+
+    public void run() {
+        int episodes = Integer.parseInt(option("episodes", "3"));
+        int warmup = Integer.parseInt(option("warmup", "1"));
+        int maxTurns = Integer.parseInt(option("maxTurns", "1000"));
+        double density = Double.parseDouble(option("density", "0.1"));
+        long seed = Long.parseLong(option("seed", "1"));
+
+        List<String> agentArgs = new ArrayList<>(Arrays.asList(Integer.toString(Integer.MAX_VALUE), "false"));
+        for(Map.Entry<String, String> entry : options.entrySet()) {
+            if(entry.getKey().startsWith(AGENT_PREFIX)) {
+                agentArgs.add(entry.getKey().substring(AGENT_PREFIX.length()) + "=" + entry.getValue());
+            }
+        }
+        //The agent takes the first match, so this only applies if the options above did not set it
+        agentArgs.add("persistState=false");
+
+        System.out.println("size\tmap\tturns\tp50_us\tp99_us\tbytes_per_turn\teps_per_sec\tpeak_heap_mb");
+        ScenarioGenerator generator = new ScenarioGenerator(seed);
+        for(String size : option("sizes", "5,10,25,50,100,250,500,1000").split(",")) {
+            int footmen = Integer.parseInt(size.trim());
+            int extent = ScenarioGenerator.extentFor(footmen);
+            ScenarioGenerator.Scenario scenario = generator.generate(footmen, extent, extent, density);
+            InProcessBattle battle = new InProcessBattle(scenario, seed);
+            RLAgent agent = new RLAgent(InProcessBattle.PLAYER, agentArgs.toArray(new String[0]));
+
+            //Warmup episodes let the JIT compile the agent before anything is recorded
+            for(int i = 0; i < warmup; i++) {
+                battle.runEpisode(agent, maxTurns, new Samples());
+            }
+
+            System.gc();
+            resetPeakHeap();
+            Samples samples = new Samples();
+            long start = System.nanoTime();
+            for(int i = 0; i < episodes; i++) {
+                battle.runEpisode(agent, maxTurns, samples);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.println(footmen + "\t" + extent + "x" + extent + "\t" + samples.count
+                    + "\t" + samples.percentile(0.5) / 1000 + "\t" + samples.percentile(0.99) / 1000
+                    + "\t" + (samples.allocationSamples > 0 ? Long.toString(samples.allocatedBytes / samples.allocationSamples) : "n/a")
+                    + "\t" + String.format("%.3f", episodes / seconds)
+                    + "\t" + peakHeap() / (1024 * 1024));
+        }
+    }
+
+    private static void resetPeakHeap() {
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Sum of the peaks of the heap pools. The pools do not peak at the same moment, so this is an upper bound.
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+}
@@ -0,0 +1,102 @@
+package edu.cwru.sepia.agent;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates footman battles of a given size for benchmarking. My footmen are placed at random in the left third
+ * of the map, the enemy in the right third, and obstacles (trees) are scattered over the middle third so the
+ * armies have to path around them. Every position is checked with inBounds and no two things share a tile.
+ */
+public class ScenarioGenerator {
+
+    /**
+     * Positions for one battle. The map is xExtent by yExtent.
+     */
+    public static class Scenario {
+        public final int xExtent;
+        public final int yExtent;
+        public final List<Position> myFootmen = new ArrayList<>();
+        public final List<Position> enemyFootmen = new ArrayList<>();
+        public final List<Position> obstacles = new ArrayList<>();
+
+        Scenario(int xExtent, int yExtent) {
+            this.xExtent = xExtent;
+            this.yExtent = yExtent;
+        }
+
+        @Override
+        public String toString() {
+            return myFootmen.size() + " vs " + enemyFootmen.size() + " on " + xExtent + "x" + yExtent
+                    + " with " + obstacles.size() + " obstacles";
+        }
+    }
+
+    private final Random random;
+
+    public ScenarioGenerator(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Picks a square map just big enough that each side fills about a quarter of its third.
+     *
+     * @param footmenPerSide Army size
+     * @return Side length of the map
+     */
+    public static int extentFor(int footmenPerSide) {
+        return Math.max(8, (int) Math.ceil(Math.sqrt(footmenPerSide * 12.0)));
+    }
+
+    /**
+     * @param footmenPerSide Number of footmen on each side
+     * @param xExtent Map width
+     * @param yExtent Map height
+     * @param obstacleDensity Fraction of the middle third covered by obstacles, between 0 and 1
+     * @return A new scenario
+     * @throws IllegalArgumentException if the armies do not fit on the map
+     */
+    public Scenario generate(int footmenPerSide, int xExtent, int yExtent, double obstacleDensity) {
+        int third = xExtent / 3;
+        if(third < 1 || footmenPerSide > third * yExtent) {
+            throw new IllegalArgumentException(footmenPerSide + " footmen per side do not fit on a " + xExtent + "x" + yExtent + " map");
+        }
+        Scenario scenario = new Scenario(xExtent, yExtent);
+        Set<Position> taken = new HashSet<>();
+
+        place(scenario.myFootmen, footmenPerSide, 0, third, scenario, taken);
+        place(scenario.enemyFootmen, footmenPerSide, xExtent - third, xExtent, scenario, taken);
+
+        int middle = (xExtent - 2 * third) * yExtent;
+        int obstacles = (int) (middle * Math.max(0, Math.min(1, obstacleDensity)));
+        place(scenario.obstacles, obstacles, third, xExtent - third, scenario, taken);
+        return scenario;
+    }
+
+    /**
+     * Puts count things on free tiles with x in [fromX, toX). Falls back to a scan once random picks start
+     * colliding a lot, so dense placements still finish.
+     */
+    private void place(List<Position> into, int count, int fromX, int toX, Scenario scenario, Set<Position> taken) {
+        int width = toX - fromX;
+        int attempts = 0;
+        while(into.size() < count && attempts < count * 8) {
+            Position position = new Position(fromX + random.nextInt(width), random.nextInt(scenario.yExtent));
+            attempts++;
+            if(position.inBounds(scenario.xExtent, scenario.yExtent) && taken.add(position)) {
+                into.add(position);
+            }
+        }
+        for(int x = fromX; x < toX && into.size() < count; x++) {
+            for(int y = 0; y < scenario.yExtent && into.size() < count; y++) {
+                Position position = new Position(x, y);
+                if(position.inBounds(scenario.xExtent, scenario.yExtent) && taken.add(position)) {
+                    into.add(position);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionFeedback;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.environment.model.history.DamageLog;
+import edu.cwru.sepia.environment.model.history.DeathLog;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * BattleView over SEPIA's state and history views. Unit lookups go straight to the state view. The logs are
+ * converted when asked for, which BattleTracker does once per turn.
+ */
+public class SepiaBattleView implements BattleView {
+
+    public final State.StateView sv;
+    public final History.HistoryView hv;
+
+    public SepiaBattleView(State.StateView sv, History.HistoryView hv) {
+        this.sv = sv;
+        this.hv = hv;
+    }
+
+    @Override
+    public int getTurnNumber() {
+        return sv.getTurnNumber();
+    }
+
+    @Override
+    public List<Integer> getUnitIds(int player) {
+        return sv.getUnitIds(player);
+    }
+
+    @Override
+    public boolean hasUnit(int unitId) {
+        return sv.getUnit(unitId) != null;
+    }
+
+    @Override
+    public int getX(int unitId) {
+        return sv.getUnit(unitId).getXPosition();
+    }
+
+    @Override
+    public int getY(int unitId) {
+        return sv.getUnit(unitId).getYPosition();
+    }
+
+    @Override
+    public int getHP(int unitId) {
+        return sv.getUnit(unitId).getHP();
+    }
+
+    @Override
+    public String getUnitName(int unitId) {
+        Unit.UnitView unit = sv.getUnit(unitId);
+        return unit.getTemplateView().getName();
+    }
+
+    @Override
+    public Map<Integer, Action> getCommandsIssued(int player, int turn) {
+        return hv.getCommandsIssued(player, turn);
+    }
+
+    @Override
+    public Map<Integer, ActionFeedback> getCommandFeedback(int player, int turn) {
+        Map<Integer, ActionFeedback> feedback = new HashMap<>();
+        for(ActionResult result : hv.getCommandFeedback(player, turn).values()) {
+            feedback.put(result.getAction().getUnitId(), result.getFeedback());
+        }
+        return feedback;
+    }
+
+    @Override
+    public List<Damage> getDamage(int turn) {
+        List<Damage> damage = new ArrayList<>();
+        for(DamageLog damageLog : hv.getDamageLogs(turn)) {
+            damage.add(new Damage(damageLog.getAttackerID(), damageLog.getAttackerController(),
+                    damageLog.getDefenderID(), damageLog.getDefenderController(), damageLog.getDamage()));
+        }
+        return damage;
+    }
+
+    @Override
+    public List<Integer> getDeaths(int turn) {
+        List<Integer> deaths = new ArrayList<>();
+        for(DeathLog deathLog : hv.getDeathLogs(turn)) {
+            deaths.add(deathLog.getDeadUnitID());
+        }
+        return deaths;
+    }
+}
@@ -0,0 +1,171 @@
+package edu.cwru.sepia.agent;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Tabular Q-values keyed by a packed, discretized state-action key (see RLAgent.stateKey).
+ *
+ * Entries live in parallel primitive arrays with linear probing, so lookups never box. The table is sized
+ * from a memory cap and when it is full the least recently useful entry is evicted with the clock algorithm:
+ * every hit sets a reference bit, and the clock hand clears bits until it finds an entry that was not used
+ * since the last sweep.
+ */
+public class TabularQCache {
+
+    /**
+     * Marks an empty slot. Packed keys are always non-negative so this can never collide with a real key.
+     */
+    private static final long EMPTY = -1L;
+
+    /**
+     * Bytes used by one slot: the key, the value and the reference bit.
+     */
+    private static final int BYTES_PER_SLOT = 8 + 8 + 1;
+
+    private final long[] keys;
+    private final double[] values;
+    private final boolean[] referenced;
+    private final int mask;
+    private final int maxEntries;
+
+    private int size = 0;
+    private int hand = 0;
+
+    /**
+     * @param memoryCapBytes Upper bound on the memory used by the table arrays
+     */
+    public TabularQCache(long memoryCapBytes) {
+        int capacity = Integer.highestOneBit((int) Math.max(16, Math.min(1 << 30, memoryCapBytes / BYTES_PER_SLOT)));
+        keys = new long[capacity];
+        values = new double[capacity];
+        referenced = new boolean[capacity];
+        mask = capacity - 1;
+        // keep the load factor at one half so probe sequences stay short
+        maxEntries = capacity / 2;
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * @param key Packed state-action key
+     * @return The stored Q-value, or NaN if the key is not in the table
+     */
+    public double get(long key) {
+        int slot = find(key);
+        if(slot < 0) {
+            return Double.NaN;
+        }
+        referenced[slot] = true;
+        return values[slot];
+    }
+
+    /**
+     * Stores a Q-value, evicting an entry first if the table is full.
+     *
+     * @param key Packed state-action key
+     * @param value Q-value to store
+     */
+    public void put(long key, double value) {
+        int slot = find(key);
+        if(slot >= 0) {
+            values[slot] = value;
+            referenced[slot] = true;
+            return;
+        }
+        if(size >= maxEntries) {
+            evict();
+        }
+        slot = hash(key);
+        while(keys[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        referenced[slot] = true;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * Called with every stored entry by forEach.
+     */
+    public interface EntryVisitor {
+        void visit(long key, double value) throws IOException;
+    }
+
+    /**
+     * Visits every stored entry, e.g. to write the table to a checkpoint.
+     */
+    public void forEach(EntryVisitor visitor) throws IOException {
+        for(int i = 0; i < keys.length; i++) {
+            if(keys[i] != EMPTY) {
+                visitor.visit(keys[i], values[i]);
+            }
+        }
+    }
+
+    /**
+     * @return Slot holding the key, or -1 if it is not present
+     */
+    private int find(long key) {
+        int slot = hash(key);
+        while(keys[slot] != EMPTY) {
+            if(keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Advances the clock hand until it finds an unreferenced entry and removes it.
+     */
+    private void evict() {
+        while(true) {
+            if(keys[hand] != EMPTY) {
+                if(!referenced[hand]) {
+                    remove(hand);
+                    return;
+                }
+                referenced[hand] = false;
+            }
+            hand = (hand + 1) & mask;
+        }
+    }
+
+    /**
+     * Removes the entry in a slot and shifts later entries of the same probe run back so lookups
+     * never stop early at the hole.
+     */
+    private void remove(int slot) {
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while(keys[next] != EMPTY) {
+            int home = hash(keys[next]);
+            // move the entry if its home slot is not cyclically between the hole and its current slot
+            if(((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                referenced[hole] = referenced[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = EMPTY;
+        referenced[hole] = false;
+        size--;
+    }
+
+    private int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}